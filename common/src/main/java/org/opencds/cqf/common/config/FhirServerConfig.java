@@ -1,10 +1,14 @@
 package org.opencds.cqf.common.config;
 
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Paths;
 import java.sql.Driver;
 
 import org.apache.commons.dbcp2.BasicDataSource;
 import org.opencds.cqf.cds.providers.ProviderConfiguration;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+import org.opencds.cqf.common.evaluation.DiskLibraryCache;
+import org.opencds.cqf.common.providers.DirectoryLibrarySourceProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.context.annotation.Bean;
@@ -76,6 +80,12 @@ public class FhirServerConfig {
         retVal.setReuseCachedSearchResultsForMillis(reuseCachedSearchResultsMillis);
         ourLog.info("Server configured to cache search results for {} milliseconds", reuseCachedSearchResultsMillis);
 
+        // Retrieves using code:in need value sets expanded into the terminology tables
+        if (HapiProperties.getCqlRetrieveValueSetMode().equals("in")) {
+            retVal.setPreExpandValueSets(true);
+            ourLog.info("Server configured to pre-expand value sets for code:in retrieves");
+        }
+
         return retVal;
     }
 
@@ -143,4 +153,25 @@ public class FhirServerConfig {
     public SearchParameterResolver searchParameterResolver(FhirContext fhirContext) {
         return new SearchParameterResolver(fhirContext);
     }
+
+    @Bean()
+    public CompiledLibraryCache compiledLibraryCache() {
+        CompiledLibraryCache cache = CompiledLibraryCache.getInstance();
+        String directory = HapiProperties.getCqlCacheDirectory();
+        if (directory != null) {
+            cache.setDiskCache(new DiskLibraryCache(Paths.get(directory),
+                    HapiProperties.getCqlCacheDirectorySize()));
+            ourLog.info("Server configured to persist compiled libraries in {}", directory);
+        }
+
+        String libraryDirectory = HapiProperties.getCqlLibraryDirectory();
+        if (libraryDirectory != null) {
+            DirectoryLibrarySourceProvider provider = new DirectoryLibrarySourceProvider(Paths.get(libraryDirectory));
+            provider.start();
+            cache.setLibraryDirectory(provider);
+            ourLog.info("Server configured to load libraries from {}", libraryDirectory);
+        }
+
+        return cache;
+    }
 }
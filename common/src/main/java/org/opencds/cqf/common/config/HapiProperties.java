@@ -2,6 +2,9 @@ package org.opencds.cqf.common.config;
 
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -77,6 +80,32 @@ public class HapiProperties {
     static final String CDSHOOKS_FHIRSERVER_SEARCHSTYLE= "cds_hooks.fhirServer.searchStyle";
     static final String CDSHOOKS_PREFETCH_MAXURILENGTH= "cds_hooks.prefetch.maxUriLength";
 
+    static final String CQL_PRECOMPILE_ENABLED = "cql.precompile.enabled";
+    static final String CQL_PRECOMPILE_THREADS = "cql.precompile.threads";
+    static final String CQL_PRECOMPILE_STATUS = "cql.precompile.status";
+    static final String CQL_PRECOMPILE_TAGS = "cql.precompile.tags";
+    static final String CQL_CACHE_DIRECTORY = "cql.cache.directory";
+    static final String CQL_CACHE_DIRECTORY_SIZE = "cql.cache.directory.size";
+    static final String CQL_LIBRARY_CACHE_SIZE = "cql.library.cache.size";
+    static final String CQL_TRANSLATION_CACHE_SIZE = "cql.translation.cache.size";
+    static final String CQL_EXPRESSION_CACHE_SIZE = "cql.expression.cache.size";
+    static final String CQL_EXPRESSION_CACHE_EXPIRY = "cql.expression.cache.expiry";
+    static final String CQL_BUNDLE_LIBRARY_CACHE_SIZE = "cql.bundle.library.cache.size";
+    static final String CQL_LIBRARY_DIRECTORY = "cql.library.directory";
+    static final String CQL_REFRESH_THREADS = "cql.refresh.threads";
+    static final String CQL_REFRESH_CHUNK_SIZE = "cql.refresh.chunk.size";
+    static final String CQL_ELM_CACHE_SIZE = "cql.elm.cache.size";
+    static final String CQL_MEASURE_ARTIFACT_CACHE_SIZE = "cql.measure.artifact.cache.size";
+    static final String CQL_EVALUATE_ASYNC_THREADS = "cql.evaluate.async.threads";
+    static final String CQL_EVALUATE_ASYNC_DIRECTORY = "cql.evaluate.async.directory";
+    static final String CQL_RETRIEVE_PAGE_SIZE = "cql.retrieve.page.size";
+    static final String CQL_RETRIEVE_THREADS = "cql.retrieve.threads";
+    static final String CQL_RETRIEVE_VALUESET_MODE = "cql.retrieve.valueset.mode";
+    static final String CQL_RETRIEVE_SLOW_THRESHOLD = "cql.retrieve.slow.threshold";
+    static final String CQL_RETRIEVE_SUMMARY_ENABLED = "cql.retrieve.summary.enabled";
+    static final String CQL_RESOURCE_CACHE_SIZE = "cql.resource.cache.size";
+    static final String CQL_RESOURCE_CACHE_EXPIRY = "cql.resource.cache.expiry";
+
     private static Properties properties;
 
     /*
@@ -479,4 +508,132 @@ public class HapiProperties {
         return SearchStyleEnum.GET;
     }
     public static Integer getCdsHooksPreFetchMaxUriLength() { return HapiProperties.getIntegerProperty(CDSHOOKS_PREFETCH_MAXURILENGTH, 8000);}
+
+    // ************************* CQL ****************
+    public static Boolean getCqlPrecompileEnabled() {
+        return HapiProperties.getBooleanProperty(CQL_PRECOMPILE_ENABLED, false);
+    }
+
+    public static Integer getCqlPrecompileThreads() {
+        return HapiProperties.getIntegerProperty(CQL_PRECOMPILE_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static List<String> getCqlPrecompileStatus() {
+        return HapiProperties.getListProperty(CQL_PRECOMPILE_STATUS);
+    }
+
+    public static List<String> getCqlPrecompileTags() {
+        return HapiProperties.getListProperty(CQL_PRECOMPILE_TAGS);
+    }
+
+    public static String getCqlCacheDirectory() {
+        return HapiProperties.getProperty(CQL_CACHE_DIRECTORY, null);
+    }
+
+    public static Integer getCqlCacheDirectorySize() {
+        return HapiProperties.getIntegerProperty(CQL_CACHE_DIRECTORY_SIZE, 10000);
+    }
+
+    public static Integer getCqlLibraryCacheSize() {
+        return HapiProperties.getIntegerProperty(CQL_LIBRARY_CACHE_SIZE, 2000);
+    }
+
+    public static Integer getCqlTranslationCacheSize() {
+        return HapiProperties.getIntegerProperty(CQL_TRANSLATION_CACHE_SIZE, 500);
+    }
+
+    public static Integer getCqlExpressionCacheSize() {
+        return HapiProperties.getIntegerProperty(CQL_EXPRESSION_CACHE_SIZE, 1000);
+    }
+
+    public static Integer getCqlExpressionCacheExpiry() {
+        return HapiProperties.getIntegerProperty(CQL_EXPRESSION_CACHE_EXPIRY, 300);
+    }
+
+    public static Integer getCqlBundleLibraryCacheSize() {
+        return HapiProperties.getIntegerProperty(CQL_BUNDLE_LIBRARY_CACHE_SIZE, 100);
+    }
+
+    public static String getCqlLibraryDirectory() {
+        return HapiProperties.getProperty(CQL_LIBRARY_DIRECTORY, null);
+    }
+
+    public static Integer getCqlRefreshThreads() {
+        return HapiProperties.getIntegerProperty(CQL_REFRESH_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static Integer getCqlRefreshChunkSize() {
+        return HapiProperties.getIntegerProperty(CQL_REFRESH_CHUNK_SIZE, 50);
+    }
+
+    public static Integer getCqlElmCacheSize() {
+        return HapiProperties.getIntegerProperty(CQL_ELM_CACHE_SIZE, 500);
+    }
+
+    public static Integer getCqlMeasureArtifactCacheSize() {
+        return HapiProperties.getIntegerProperty(CQL_MEASURE_ARTIFACT_CACHE_SIZE, 200);
+    }
+
+    public static Integer getCqlEvaluateAsyncThreads() {
+        return HapiProperties.getIntegerProperty(CQL_EVALUATE_ASYNC_THREADS,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    public static String getCqlEvaluateAsyncDirectory() {
+        return HapiProperties.getProperty(CQL_EVALUATE_ASYNC_DIRECTORY,
+                Paths.get(System.getProperty("java.io.tmpdir"), "cqf-ruler-evaluate").toString());
+    }
+
+    public static Integer getCqlRetrievePageSize() {
+        return HapiProperties.getIntegerProperty(CQL_RETRIEVE_PAGE_SIZE, 200);
+    }
+
+    public static Integer getCqlRetrieveThreads() {
+        return HapiProperties.getIntegerProperty(CQL_RETRIEVE_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Either "expand", to search for the codes of an expanded value set, or "in",
+     * to search with code:in against the server's pre-expanded value sets.
+     */
+    public static String getCqlRetrieveValueSetMode() {
+        String mode = HapiProperties.getProperty(CQL_RETRIEVE_VALUESET_MODE, "expand").trim();
+        if (!mode.equals("expand") && !mode.equals("in")) {
+            throw new IllegalArgumentException(
+                    String.format("Unknown %s %s, expected expand or in", CQL_RETRIEVE_VALUESET_MODE, mode));
+        }
+
+        return mode;
+    }
+
+    public static Integer getCqlRetrieveSlowThreshold() {
+        return HapiProperties.getIntegerProperty(CQL_RETRIEVE_SLOW_THRESHOLD, 1000);
+    }
+
+    public static Boolean getCqlRetrieveSummaryEnabled() {
+        return HapiProperties.getBooleanProperty(CQL_RETRIEVE_SUMMARY_ENABLED, false);
+    }
+
+    public static Integer getCqlResourceCacheSize() {
+        return HapiProperties.getIntegerProperty(CQL_RESOURCE_CACHE_SIZE, 1000);
+    }
+
+    public static Integer getCqlResourceCacheExpiry() {
+        return HapiProperties.getIntegerProperty(CQL_RESOURCE_CACHE_EXPIRY, 300);
+    }
+
+    private static List<String> getListProperty(String propertyName) {
+        List<String> values = new ArrayList<>();
+        String value = HapiProperties.getProperty(propertyName);
+
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (item.trim().length() > 0) {
+                    values.add(item.trim());
+                }
+            }
+        }
+
+        return values;
+    }
 }
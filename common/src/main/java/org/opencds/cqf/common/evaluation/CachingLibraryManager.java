@@ -0,0 +1,126 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+import static org.opencds.cqf.common.helpers.TranslatorHelper.errorsToString;
+
+/**
+ * A LibraryManager that resolves included libraries through a
+ * {@link CompiledLibraryCache}, so a library shared by many others (e.g.
+ * FHIRHelpers) is translated once per process rather than once per request.
+ *
+ * Like LibraryManager itself, instances are not thread-safe. Create one per
+ * thread of work; the underlying cache is shared.
+ */
+public class CachingLibraryManager extends LibraryManager {
+
+    private final CompiledLibraryCache cache;
+    private final Map<String, String> cacheKeys = new HashMap<>();
+    private final Set<String> pending = new HashSet<>();
+    private final Set<String> keying = new HashSet<>();
+
+    public CachingLibraryManager(CompiledLibraryCache cache) {
+        super(cache.getModelManager());
+        this.cache = cache;
+    }
+
+    public CompiledLibraryCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Returns the cache key for the current source of the given library and its
+     * includes, or null if no source could be found.
+     */
+    public String getCacheKey(VersionedIdentifier libraryIdentifier, CqlTranslatorOptions options) {
+        String sourceKey = String.format("%s|%s|%s", libraryIdentifier.getId(), libraryIdentifier.getVersion(),
+                options != null ? options.getOptions() : "");
+        if (this.cacheKeys.containsKey(sourceKey)) {
+            return this.cacheKeys.get(sourceKey);
+        }
+
+        // Circular include; the translator reports it
+        if (!this.keying.add(sourceKey)) {
+            return sourceKey;
+        }
+
+        try {
+            String key = null;
+            InputStream source = this.getLibrarySourceLoader().getLibrarySource(libraryIdentifier);
+            if (source != null) {
+                String text = IOUtils.toString(source, StandardCharsets.UTF_8);
+                List<String> includeKeys = new ArrayList<>();
+                for (org.cqframework.cql.elm.execution.VersionedIdentifier include : ParallelLibraryLoader
+                        .parseIncludes(text)) {
+                    includeKeys.add(String.valueOf(this.getCacheKey(
+                            new VersionedIdentifier().withId(include.getId()).withVersion(include.getVersion()),
+                            options)));
+                }
+                key = CompiledLibraryCache.getKey(libraryIdentifier, options, text, includeKeys);
+            }
+
+            this.cacheKeys.put(sourceKey, key);
+            return key;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(String.format("Error reading source for library %s: %s",
+                    libraryIdentifier.getId(), e.getMessage()));
+        } finally {
+            this.keying.remove(sourceKey);
+        }
+    }
+
+    @Override
+    public TranslatedLibrary resolveLibrary(VersionedIdentifier libraryIdentifier, CqlTranslatorOptions options,
+            List<CqlTranslatorException> errors) {
+        String key;
+        try {
+            key = this.getCacheKey(libraryIdentifier, options);
+        } catch (RuntimeException e) {
+            key = null;
+        }
+
+        // Unknown sources and circular includes are left to the translator to report
+        if (key == null || !this.pending.add(key)) {
+            return super.resolveLibrary(libraryIdentifier, options, errors);
+        }
+
+        List<CqlTranslatorException> translationErrors = new ArrayList<>();
+        TranslatedLibrary[] translated = new TranslatedLibrary[1];
+        try {
+            return this.cache.getTranslatedLibrary(key, () -> {
+                translated[0] = super.resolveLibrary(libraryIdentifier, options, translationErrors);
+                if (CqlTranslatorException.HasErrors(translationErrors)) {
+                    throw new IllegalArgumentException(errorsToString(translationErrors));
+                }
+                return translated[0];
+            });
+        } catch (RuntimeException e) {
+            // Libraries with errors are never cached. Hand the caller the translator's
+            // errors the usual way, resolving again if another thread did the translation.
+            if (translated[0] != null) {
+                return translated[0];
+            }
+            return super.resolveLibrary(libraryIdentifier, options, errors);
+        } finally {
+            if (errors != null) {
+                errors.addAll(translationErrors);
+            }
+            this.pending.remove(key);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.apache.commons.io.IOUtils;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.Model;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.providers.DirectoryLibrarySourceProvider;
+
+import static org.opencds.cqf.common.helpers.TranslatorHelper.readLibrary;
+
+/**
+ * Process-wide cache of translated and compiled CQL libraries.
+ *
+ * Entries are keyed by library identifier, translator options and a hash of the
+ * library source and the keys of its includes, so an edited library, or a
+ * library whose includes were edited, is recompiled rather than served stale.
+ * Concurrent requests for the same key share a single compilation, unless
+ * waiting for it would deadlock, e.g. two threads compiling libraries that
+ * include each other in opposite order. The number of entries kept in memory is
+ * bounded by cql.library.cache.size. When a {@link DiskLibraryCache} is
+ * configured, compiled libraries are also kept on disk so they survive a
+ * restart.
+ */
+public class CompiledLibraryCache {
+
+    private static final CompiledLibraryCache instance = new CompiledLibraryCache();
+
+    public static CompiledLibraryCache getInstance() {
+        return instance;
+    }
+
+    private final ModelManager modelManager = new SynchronizedModelManager();
+    private final Cache<String, CompletableFuture<TranslatedLibrary>> translatedLibraries;
+    private final Cache<String, CompletableFuture<Library>> libraries;
+
+    // The thread computing each entry, and the entry each waiting thread waits for
+    private final ConcurrentMap<CompletableFuture<?>, Thread> owners = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Thread, CompletableFuture<?>> waits = new ConcurrentHashMap<>();
+
+    private volatile DiskLibraryCache diskCache;
+    private volatile DirectoryLibrarySourceProvider libraryDirectory;
+
+    private CompiledLibraryCache() {
+        long size = HapiProperties.getCqlLibraryCacheSize();
+        this.translatedLibraries = CacheBuilder.newBuilder().maximumSize(size).build();
+        this.libraries = CacheBuilder.newBuilder().maximumSize(size).build();
+    }
+
+    // The translated libraries in this cache reference model types, so every
+    // LibraryManager that uses the cache must share this ModelManager.
+    public ModelManager getModelManager() {
+        return this.modelManager;
+    }
+
+    public TranslatedLibrary getTranslatedLibrary(String key, Supplier<TranslatedLibrary> translator) {
+        return this.computeOnce(this.translatedLibraries, key, translator);
+    }
+
+    public DiskLibraryCache getDiskCache() {
+        return this.diskCache;
+    }
+
+    public void setDiskCache(DiskLibraryCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    // Libraries in this directory take precedence over stored ones
+    public DirectoryLibrarySourceProvider getLibraryDirectory() {
+        return this.libraryDirectory;
+    }
+
+    public void setLibraryDirectory(DirectoryLibrarySourceProvider libraryDirectory) {
+        this.libraryDirectory = libraryDirectory;
+    }
+
+    /**
+     * Returns the compiled library for the given key. On a miss the library is
+     * read from the disk cache if present there, and otherwise the given
+     * translator is called for its ELM XML.
+     */
+    public Library getLibrary(String key, Supplier<String> translator) {
+        return this.computeOnce(this.libraries, key, () -> {
+            DiskLibraryCache disk = this.diskCache;
+            if (disk != null) {
+                String elm = disk.read(key);
+                if (elm != null) {
+                    try {
+                        return toLibrary(elm);
+                    } catch (RuntimeException e) {
+                        // Fall through and rebuild the entry
+                    }
+                }
+            }
+
+            String elm = translator.get();
+            Library library = toLibrary(elm);
+            if (disk != null) {
+                disk.write(key, elm);
+            }
+            return library;
+        });
+    }
+
+    public long size() {
+        return this.libraries.size();
+    }
+
+    public void clear() {
+        this.translatedLibraries.invalidateAll();
+        this.libraries.invalidateAll();
+        if (this.diskCache != null) {
+            this.diskCache.clear();
+        }
+    }
+
+    private static Library toLibrary(String elm) {
+        return readLibrary(new ByteArrayInputStream(elm.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static String getKey(VersionedIdentifier identifier, CqlTranslatorOptions options, InputStream source) {
+        try {
+            return getKey(identifier, options, IOUtils.toString(source, StandardCharsets.UTF_8),
+                    Collections.emptyList());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                    String.format("Error reading source for library %s: %s", identifier.getId(), e.getMessage()));
+        }
+    }
+
+    public static String getKey(VersionedIdentifier identifier, CqlTranslatorOptions options, String source,
+            List<String> includeKeys) {
+        Hasher hasher = Hashing.sha256().newHasher().putString(source, StandardCharsets.UTF_8);
+        for (String includeKey : includeKeys) {
+            hasher.putChar('\n').putString(includeKey, StandardCharsets.UTF_8);
+        }
+
+        return String.format("%s|%s|%s|%s", identifier.getId(), identifier.getVersion(),
+                options != null ? options.getOptions() : "", hasher.hash().toString());
+    }
+
+    private <T> T computeOnce(Cache<String, CompletableFuture<T>> cache, String key, Supplier<T> supplier) {
+        ConcurrentMap<String, CompletableFuture<T>> entries = cache.asMap();
+        CompletableFuture<T> future = entries.get(key);
+        if (future == null) {
+            CompletableFuture<T> created = new CompletableFuture<>();
+            future = entries.putIfAbsent(key, created);
+            if (future == null) {
+                return this.compute(entries, key, created, supplier);
+            }
+        }
+
+        if (future.isDone()) {
+            return join(future);
+        }
+
+        Thread current = Thread.currentThread();
+        this.waits.put(current, future);
+        if (this.isWaitingOnItself(current)) {
+            // Compute without the cache rather than wait on a thread that waits for
+            // this one; the translator reports a circular include
+            this.waits.remove(current);
+            return supplier.get();
+        }
+
+        try {
+            return join(future);
+        } finally {
+            this.waits.remove(current);
+        }
+    }
+
+    private <T> T compute(ConcurrentMap<String, CompletableFuture<T>> entries, String key,
+            CompletableFuture<T> future, Supplier<T> supplier) {
+        this.owners.put(future, Thread.currentThread());
+        try {
+            T value = supplier.get();
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // Failures, errors included, are not cached; the next request tries again.
+            entries.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.owners.remove(future);
+        }
+    }
+
+    // Follows the entries waited for, through the threads computing them. Each
+    // thread records its wait before checking, so of two threads about to wait
+    // on each other, at least the second sees the cycle.
+    private boolean isWaitingOnItself(Thread thread) {
+        Set<Thread> seen = new HashSet<>();
+        CompletableFuture<?> waitingFor = this.waits.get(thread);
+        while (waitingFor != null) {
+            Thread owner = this.owners.get(waitingFor);
+            if (owner == thread) {
+                return true;
+            }
+            if (owner == null || !seen.add(owner)) {
+                return false;
+            }
+            waitingFor = this.waits.get(owner);
+        }
+
+        return false;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // ModelManager keeps its loaded models in plain maps, so model resolution is
+    // serialized when the manager is shared between translation threads.
+    private static class SynchronizedModelManager extends ModelManager {
+        @Override
+        public synchronized Model resolveModel(String modelName) {
+            return super.resolveModel(modelName);
+        }
+
+        @Override
+        public synchronized Model resolveModel(String modelName, String version) {
+            return super.resolveModel(modelName, version);
+        }
+
+        @Override
+        public synchronized Model resolveModel(VersionedIdentifier modelIdentifier) {
+            return super.resolveModel(modelIdentifier);
+        }
+
+        @Override
+        public synchronized Model resolveModelByUri(String namespaceUri) {
+            return super.resolveModelByUri(namespaceUri);
+        }
+    }
+}
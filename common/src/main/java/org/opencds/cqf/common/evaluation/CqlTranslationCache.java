@@ -0,0 +1,142 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+
+/**
+ * Bounded cache of translated ad-hoc CQL, as submitted to $cql.
+ *
+ * Entries are keyed by a hash of the CQL, the translator options and the
+ * current source of every included library, so editing an included library
+ * invalidates the snippets that use it. Snippets that fail to translate
+ * are cached along with their errors.
+ */
+public class CqlTranslationCache {
+
+    public static class Entry {
+        private final Library library;
+        private final Map<String, List<Integer>> locations;
+        private final List<CqlTranslatorException> errors;
+
+        private Entry(Library library, Map<String, List<Integer>> locations, List<CqlTranslatorException> errors) {
+            this.library = library;
+            this.locations = locations;
+            this.errors = errors;
+        }
+
+        // Null if the CQL has errors
+        public Library getLibrary() {
+            return this.library;
+        }
+
+        public Map<String, List<Integer>> getLocations() {
+            return this.locations;
+        }
+
+        public List<CqlTranslatorException> getErrors() {
+            return this.errors;
+        }
+
+        public boolean hasErrors() {
+            return !this.errors.isEmpty();
+        }
+    }
+
+    private final Cache<String, Entry> cache;
+
+    public CqlTranslationCache(long maximumSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    public Entry getEntry(String cql, LibraryManager libraryManager, ModelManager modelManager) {
+        try {
+            return this.cache.get(getKey(cql, libraryManager), () -> translate(cql, libraryManager, modelManager));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+
+    private static String getKey(String cql, LibraryManager libraryManager) {
+        StringBuilder key = new StringBuilder(Hashing.sha256().hashString(cql, StandardCharsets.UTF_8).toString());
+        key.append('|').append(Arrays.toString(TranslatorHelper.getTranslatorOptions()));
+
+        for (VersionedIdentifier include : ParallelLibraryLoader.parseIncludes(cql)) {
+            org.hl7.elm.r1.VersionedIdentifier identifier = new org.hl7.elm.r1.VersionedIdentifier()
+                    .withId(include.getId()).withVersion(include.getVersion());
+            if (libraryManager instanceof CachingLibraryManager) {
+                key.append('|').append(((CachingLibraryManager) libraryManager).getCacheKey(identifier, null));
+                continue;
+            }
+
+            InputStream source;
+            try {
+                source = libraryManager.getLibrarySourceLoader().getLibrarySource(identifier);
+            } catch (RuntimeException e) {
+                source = null;
+            }
+
+            key.append('|');
+            key.append(source != null ? CompiledLibraryCache.getKey(identifier, null, source)
+                    : include.getId() + "|" + include.getVersion());
+        }
+
+        return key.toString();
+    }
+
+    private static Entry translate(String cql, LibraryManager libraryManager, ModelManager modelManager) {
+        CqlTranslator translator = TranslatorHelper.getTranslator(cql, libraryManager, modelManager);
+        if (translator.getErrors().size() > 0) {
+            return new Entry(null, Collections.emptyMap(), new ArrayList<>(translator.getErrors()));
+        }
+
+        return new Entry(TranslatorHelper.translateLibrary(translator),
+                getLocations(translator.getTranslatedLibrary().getLibrary()), Collections.emptyList());
+    }
+
+    private static Map<String, List<Integer>> getLocations(org.hl7.elm.r1.Library library) {
+        Map<String, List<Integer>> locations = new HashMap<>();
+
+        if (library.getStatements() == null)
+            return locations;
+
+        for (org.hl7.elm.r1.ExpressionDef def : library.getStatements().getDef()) {
+            int startLine = def.getTrackbacks().isEmpty() ? 0 : def.getTrackbacks().get(0).getStartLine();
+            int startChar = def.getTrackbacks().isEmpty() ? 0 : def.getTrackbacks().get(0).getStartChar();
+            List<Integer> loc = Arrays.asList(startLine, startChar);
+            locations.put(def.getName(), loc);
+        }
+
+        return Collections.unmodifiableMap(locations);
+    }
+}
@@ -0,0 +1,302 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.hash.Hashing;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores compiled ELM in a local directory so it survives restarts.
+ *
+ * Each entry is a single file named for a hash of its cache key, holding a
+ * small header (format version, translator and engine versions and cache key)
+ * and the deflated ELM, followed by a CRC32 of both. Entries are read lazily
+ * through a memory-mapped buffer, and the checksum is verified before any
+ * length in the header is trusted. Entries that are corrupt or were written by
+ * a different translator or engine are deleted and reported as missing, so the
+ * caller rebuilds them.
+ *
+ * Reads and writes touch an entry's modification time. Once there are more
+ * than the given number of entries, the least recently used are deleted.
+ */
+public class DiskLibraryCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskLibraryCache.class);
+
+    private static final int MAGIC = 0x43514C45; // "CQLE"
+    private static final short FORMAT_VERSION = 2;
+    private static final String EXTENSION = ".elmz";
+    // Magic, format version, the four lengths and the checksum
+    private static final int MINIMUM_LENGTH = 4 + 2 + 4 + 4 + 4 + 4 + 8;
+
+    private final Path directory;
+    private final int maximumSize;
+    private final String toolchainVersion;
+    private final AtomicInteger writesSincePrune = new AtomicInteger();
+
+    public DiskLibraryCache(Path directory, int maximumSize) {
+        this.directory = directory;
+        this.maximumSize = maximumSize;
+        this.toolchainVersion = getVersion(CqlTranslator.class) + "/" + getVersion(CqlEngine.class);
+
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                    String.format("Unable to create library cache directory %s: %s", directory, e.getMessage()));
+        }
+
+        this.prune();
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Returns the ELM XML stored for the given key, or null if there is no
+     * usable entry.
+     */
+    public String read(String key) {
+        Path file = this.getPath(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            String elm = this.decode(buffer, key);
+            if (elm != null) {
+                this.touch(file);
+                return elm;
+            }
+        } catch (IOException | RuntimeException | DataFormatException e) {
+            logger.warn("Discarding unreadable library cache entry {}: {}", file, e.getMessage());
+        }
+
+        this.delete(file);
+        return null;
+    }
+
+    public void write(String key, String elm) {
+        Path file = this.getPath(key);
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(this.directory, "library", ".tmp");
+            Files.write(temp, this.encode(key, elm));
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // The disk cache is an optimization only
+            logger.warn("Unable to write library cache entry {}: {}", file, e.getMessage());
+            if (temp != null) {
+                this.delete(temp);
+            }
+        }
+
+        // Listing the directory on every write would dominate small writes
+        if (this.writesSincePrune.incrementAndGet() >= Math.max(1, this.maximumSize / 10)) {
+            this.writesSincePrune.set(0);
+            this.prune();
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries beyond the maximum size.
+     */
+    public synchronized void prune() {
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(this.directory)) {
+            entries = files.filter(x -> x.toString().endsWith(EXTENSION)).collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.warn("Unable to list library cache directory {}: {}", this.directory, e.getMessage());
+            return;
+        }
+
+        if (entries.size() <= this.maximumSize) {
+            return;
+        }
+
+        List<Pair<Path, FileTime>> byLastModified = new ArrayList<>();
+        for (Path entry : entries) {
+            try {
+                byLastModified.add(Pair.of(entry, Files.getLastModifiedTime(entry)));
+            } catch (IOException e) {
+                // Deleted concurrently
+            }
+        }
+
+        byLastModified.sort(Comparator.comparing(Pair::getRight));
+        for (int i = 0; i < byLastModified.size() - this.maximumSize; i++) {
+            this.delete(byLastModified.get(i).getLeft());
+        }
+    }
+
+    public void clear() {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            files.filter(x -> x.toString().endsWith(EXTENSION)).forEach(this::delete);
+        } catch (IOException e) {
+            logger.warn("Unable to clear library cache directory {}: {}", this.directory, e.getMessage());
+        }
+    }
+
+    private byte[] encode(String key, String elm) {
+        byte[] content = elm.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] payload;
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, content.length / 2)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    byte[] grown = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, grown, 0, length);
+                    buffer = grown;
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            payload = new byte[length];
+            System.arraycopy(buffer, 0, payload, 0, length);
+        } finally {
+            deflater.end();
+        }
+
+        byte[] version = this.toolchainVersion.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(MINIMUM_LENGTH + version.length + keyBytes.length + payload.length);
+        buffer.putInt(MAGIC);
+        buffer.putShort(FORMAT_VERSION);
+        buffer.putInt(version.length).put(version);
+        buffer.putInt(keyBytes.length).put(keyBytes);
+        buffer.putInt(content.length);
+        buffer.putInt(payload.length);
+        buffer.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        return buffer.array();
+    }
+
+    private String decode(ByteBuffer buffer, String key) throws DataFormatException {
+        if (buffer.limit() < MINIMUM_LENGTH) {
+            return null;
+        }
+
+        // Verify the whole entry, header included, before trusting its lengths
+        ByteBuffer checked = buffer.duplicate();
+        checked.limit(buffer.limit() - 8);
+        CRC32 crc = new CRC32();
+        crc.update(checked);
+        if (crc.getValue() != buffer.getLong(buffer.limit() - 8)) {
+            return null;
+        }
+
+        buffer.limit(buffer.limit() - 8);
+        if (buffer.getInt() != MAGIC || buffer.getShort() != FORMAT_VERSION) {
+            return null;
+        }
+
+        if (!this.toolchainVersion.equals(readString(buffer)) || !key.equals(readString(buffer))) {
+            return null;
+        }
+
+        int contentLength = buffer.getInt();
+        int payloadLength = buffer.getInt();
+        if (contentLength < 0 || payloadLength != buffer.remaining()) {
+            return null;
+        }
+
+        byte[] payload = new byte[payloadLength];
+        buffer.get(payload);
+
+        byte[] content = new byte[contentLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            if (inflater.inflate(content) != contentLength || !inflater.finished()) {
+                return null;
+            }
+        } finally {
+            inflater.end();
+        }
+
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    // Null if the length runs past the end of the buffer
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Path getPath(String key) {
+        return this.directory.resolve(Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString() + EXTENSION);
+    }
+
+    private void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Only affects which entries are pruned first
+        }
+    }
+
+    private void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Unable to delete library cache entry {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static String getVersion(Class<?> clazz) {
+        String version = clazz.getPackage() != null ? clazz.getPackage().getImplementationVersion() : null;
+        if (version != null) {
+            return version;
+        }
+
+        // Fall back to the jar the class was loaded from, which changes with the version
+        try {
+            return clazz.getProtectionDomain().getCodeSource().getLocation().getPath();
+        } catch (RuntimeException e) {
+            return "unknown";
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.opencds.cqf.common.evaluation;
 
+import org.cqframework.cql.elm.execution.Library;
 import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 
 // TODO: This interface is a partial duplicate of the provider factory interface
@@ -12,6 +14,10 @@ public interface EvaluationProviderFactory {
 
     public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider);
 
+    // The library, when known, lets the provider plan its retrieves
+    public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider,
+            Library library, LibraryLoader libraryLoader);
+
     public TerminologyProvider createTerminologyProvider(String model, String version, String url, String user,
             String pass);
 }
\ No newline at end of file
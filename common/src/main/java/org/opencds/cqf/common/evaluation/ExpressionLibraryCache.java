@@ -0,0 +1,119 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Bounded cache of the small libraries compiled to evaluate a single CQL
+ * expression in the context of a resource (e.g. PlanDefinition dynamic values
+ * and conditions).
+ *
+ * An entry is translated against the libraries it includes, directly or not.
+ * Registered with the JPA interceptor service, the cache is cleared whenever a
+ * Library is created, updated or deleted: before the transaction commits, and
+ * again once it has completed. A compile that races with such a write is not
+ * kept. Entries also expire after a fixed time.
+ */
+@Interceptor
+public class ExpressionLibraryCache {
+
+    private final Cache<String, Library> cache;
+    private final Predicate<IBaseResource> isLibrary;
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ExpressionLibraryCache(long maximumSize, long expirySeconds, Predicate<IBaseResource> isLibrary) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(expirySeconds, TimeUnit.SECONDS).build();
+        this.isLibrary = isLibrary;
+    }
+
+    /**
+     * Returns the compiled expression library for the given key, or null if it is
+     * not cached.
+     */
+    public Library getIfPresent(String key) {
+        return this.cache.getIfPresent(key);
+    }
+
+    /**
+     * Returns the compiled expression library for the given key, compiling it on
+     * a miss.
+     */
+    public Library get(String key, Supplier<Library> compiler) {
+        long invalidations = this.invalidations.get();
+        Library library;
+        try {
+            library = this.cache.get(key, compiler::get);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+        // A Library changed while compiling, so the result may be stale
+        if (invalidations != this.invalidations.get()) {
+            this.cache.asMap().remove(key, library);
+        }
+
+        return library;
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    public void clear() {
+        this.invalidations.incrementAndGet();
+        this.cache.invalidateAll();
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+        this.invalidateUntilCommitted(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+        this.invalidateUntilCommitted(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+        this.invalidateUntilCommitted(theResource);
+    }
+
+    // Reads between the precommit hook and the commit still see the old version,
+    // so clear again once the transaction completes
+    private void invalidateUntilCommitted(IBaseResource resource) {
+        if (resource == null || !this.isLibrary.test(resource)) {
+            return;
+        }
+
+        this.clear();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    clear();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.cqframework.cql.cql2elm.LibrarySourceLoader;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a server current with edits to its watched library directory.
+ *
+ * The changed libraries, and the libraries that include them, are recompiled
+ * into the shared cache as soon as they change, so an edit is compiled before
+ * the next evaluation asks for it. Caches of artifacts derived from library
+ * source (ELM, data requirements, HQMF, narratives, expression libraries) are
+ * keyed by stored versions that a directory edit does not change, so they are
+ * cleared by the given invalidations.
+ */
+public class LibraryDirectoryListener implements Consumer<List<VersionedIdentifier>> {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryDirectoryListener.class);
+
+    private final Supplier<LibrarySourceLoader> sourceLoaders;
+    private final List<Runnable> invalidations;
+
+    public LibraryDirectoryListener(Supplier<LibrarySourceLoader> sourceLoaders, Runnable... invalidations) {
+        this.sourceLoaders = sourceLoaders;
+        this.invalidations = Arrays.asList(invalidations);
+    }
+
+    @Override
+    public void accept(List<VersionedIdentifier> libraries) {
+        for (Runnable invalidation : this.invalidations) {
+            invalidation.run();
+        }
+
+        List<CompletableFuture<Void>> tasks = new ParallelLibraryLoader(this.sourceLoaders.get(),
+                CompiledLibraryCache.getInstance()).compileAsync(libraries);
+        for (int i = 0; i < tasks.size(); i++) {
+            VersionedIdentifier libraryIdentifier = libraries.get(i);
+            tasks.get(i).whenComplete((result, e) -> {
+                if (e != null) {
+                    logger.warn("Unable to compile library {} version {}: {}", libraryIdentifier.getId(),
+                            libraryIdentifier.getVersion(), e.getMessage());
+                }
+            });
+        }
+    }
+}
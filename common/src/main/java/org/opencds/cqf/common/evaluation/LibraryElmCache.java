@@ -0,0 +1,140 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Bounded cache of serialized ELM, as returned by Library $get-elm, keyed by
+ * Library id, versionId and format.
+ *
+ * Each entry remembers the names of the libraries it includes, directly or
+ * not. Registered with the JPA interceptor service, the cache drops entries
+ * for a Library, and for every Library that includes it, when it is created,
+ * updated or deleted: before the transaction commits, and again once it has
+ * completed.
+ */
+@Interceptor
+public class LibraryElmCache {
+
+    public static class Elm {
+        private final String content;
+        private final Set<String> includes;
+
+        public Elm(String content, Set<String> includes) {
+            this.content = content;
+            this.includes = includes != null ? includes : Collections.emptySet();
+        }
+
+        public String getContent() {
+            return this.content;
+        }
+    }
+
+    private static class CachedElm {
+        private final String libraryId;
+        private final Elm elm;
+
+        CachedElm(String libraryId, Elm elm) {
+            this.libraryId = libraryId;
+            this.elm = elm;
+        }
+    }
+
+    private final Cache<String, CachedElm> cache;
+    private final Function<IBaseResource, String> getName;
+
+    /**
+     * @param getName returns the name of a Library, or null if the resource is not
+     *                a Library
+     */
+    public LibraryElmCache(long maximumSize, Function<IBaseResource, String> getName) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+        this.getName = getName;
+    }
+
+    /**
+     * Returns the ELM for the given Library version and format, translating it on
+     * a miss.
+     */
+    public String getElm(IIdType libraryId, String format, Supplier<Elm> translator) {
+        String id = libraryId.getIdPart();
+        String key = String.format("%s|%s|%s", id, libraryId.getVersionIdPart(), format);
+        try {
+            return this.cache.get(key, () -> new CachedElm(id, translator.get())).elm.getContent();
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+        this.invalidateUntilCommitted(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+        this.invalidateUntilCommitted(theOldResource);
+        this.invalidateUntilCommitted(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+        this.invalidateUntilCommitted(theResource);
+    }
+
+    // Reads between the precommit hook and the commit still see the old version,
+    // so invalidate again once the transaction completes
+    private void invalidateUntilCommitted(IBaseResource resource) {
+        this.invalidate(resource);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    invalidate(resource);
+                }
+            });
+        }
+    }
+
+    private void invalidate(IBaseResource resource) {
+        if (resource == null || this.cache.size() == 0) {
+            return;
+        }
+
+        String name = this.getName.apply(resource);
+        if (name == null) {
+            return;
+        }
+
+        String id = resource.getIdElement().getIdPart();
+        this.cache.asMap().values()
+                .removeIf(x -> x.libraryId.equals(id) || x.elm.includes.contains(name));
+    }
+}
@@ -9,10 +9,13 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.bind.JAXBException;
 
+import com.google.common.hash.Hashing;
+
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
 import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
@@ -20,6 +23,7 @@ import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.providers.DirectoryLibrarySourceProvider;
 
 public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.LibraryLoader {
 
@@ -79,6 +83,26 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
                 .withId(libraryIdentifier.getId()).withSystem(libraryIdentifier.getSystem())
                 .withVersion(libraryIdentifier.getVersion());
 
+        if (libraryManager instanceof CachingLibraryManager) {
+            CachingLibraryManager cachingLibraryManager = (CachingLibraryManager) libraryManager;
+            DirectoryLibrarySourceProvider libraryDirectory = cachingLibraryManager.getCache().getLibraryDirectory();
+            String elm = libraryDirectory != null ? libraryDirectory.getElm(identifier) : null;
+            if (elm != null) {
+                String elmKey = String.format("elm|%s|%s|%s", identifier.getId(), identifier.getVersion(),
+                        Hashing.sha256().hashString(elm, StandardCharsets.UTF_8));
+                return cachingLibraryManager.getCache().getLibrary(elmKey, () -> elm);
+            }
+
+            String key = cachingLibraryManager.getCacheKey(identifier, CqlTranslatorOptions.defaultOptions());
+            if (key != null) {
+                return cachingLibraryManager.getCache().getLibrary(key, () -> translateToElm(identifier));
+            }
+        }
+
+        return readLibrary(new ByteArrayInputStream(translateToElm(identifier).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String translateToElm(org.hl7.elm.r1.VersionedIdentifier identifier) {
         ArrayList<CqlTranslatorException> errors = new ArrayList<>();
         org.hl7.elm.r1.Library translatedLibrary = libraryManager.resolveLibrary(identifier, CqlTranslatorOptions.defaultOptions(), errors).getLibrary();
 
@@ -92,8 +116,7 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
                 throw new IllegalArgumentException(errorsToString(translator.getErrors()));
             }
 
-            return readLibrary(new ByteArrayInputStream(
-                    CqlTranslator.convertToXml(translatedLibrary).getBytes(StandardCharsets.UTF_8)));
+            return CqlTranslator.convertToXml(translatedLibrary);
         } catch (JAXBException e) {
             throw new IllegalArgumentException(String.format("Errors occurred translating library %s%s.",
                     identifier.getId(), identifier.getVersion() != null ? ("-" + identifier.getVersion()) : ""));
@@ -104,4 +127,22 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
     public Library load(VersionedIdentifier versionedIdentifier) {
         return resolveLibrary(versionedIdentifier);
     }
+
+    /**
+     * Loads the given libraries, first compiling them and their includes in
+     * dependency order on a worker pool when this loader uses the shared cache.
+     */
+    public List<Library> loadAll(List<VersionedIdentifier> versionedIdentifiers) {
+        if (libraryManager instanceof CachingLibraryManager) {
+            new ParallelLibraryLoader(libraryManager.getLibrarySourceLoader(),
+                    ((CachingLibraryManager) libraryManager).getCache()).compile(versionedIdentifiers);
+        }
+
+        List<Library> result = new ArrayList<>();
+        for (VersionedIdentifier versionedIdentifier : versionedIdentifiers) {
+            result.add(resolveLibrary(versionedIdentifier));
+        }
+
+        return result;
+    }
 }
@@ -0,0 +1,125 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.cqframework.cql.cql2elm.LibrarySourceLoader;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles a set of stored libraries into the {@link CompiledLibraryCache} in
+ * the background and tracks progress, so a server can report itself as not
+ * ready until the cache is warm.
+ */
+public class LibraryPrecompiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryPrecompiler.class);
+
+    public enum State {
+        NOT_STARTED, RUNNING, COMPLETED, FAILED
+    }
+
+    private final int threads;
+    private volatile State state = State.NOT_STARTED;
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger compiled = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile long startTime;
+    private volatile long endTime;
+
+    public LibraryPrecompiler(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Starts compiling the libraries returned by the given supplier on a
+     * background thread. Calls after the first are ignored.
+     */
+    public synchronized void start(Supplier<List<VersionedIdentifier>> libraries, LibrarySourceLoader sourceLoader) {
+        if (this.state != State.NOT_STARTED) {
+            return;
+        }
+
+        this.state = State.RUNNING;
+        this.startTime = System.currentTimeMillis();
+
+        Thread thread = new Thread(() -> this.run(libraries, sourceLoader), "library-precompiler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run(Supplier<List<VersionedIdentifier>> libraries, LibrarySourceLoader sourceLoader) {
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads,
+                new ParallelLibraryLoader.DaemonThreadFactory("library-precompiler"));
+        try {
+            List<VersionedIdentifier> libraryIdentifiers = libraries.get();
+            this.total.set(libraryIdentifiers.size());
+            logger.info("Precompiling {} libraries using {} threads", libraryIdentifiers.size(), this.threads);
+
+            List<CompletableFuture<Void>> tasks = new ParallelLibraryLoader(sourceLoader,
+                    CompiledLibraryCache.getInstance(), executor).compileAsync(libraryIdentifiers);
+            List<CompletableFuture<Void>> progress = new ArrayList<>();
+            for (int i = 0; i < tasks.size(); i++) {
+                VersionedIdentifier libraryIdentifier = libraryIdentifiers.get(i);
+                progress.add(tasks.get(i).whenComplete((result, e) -> {
+                    if (e != null) {
+                        this.failed.incrementAndGet();
+                        logger.warn("Unable to precompile library {} version {}: {}", libraryIdentifier.getId(),
+                                libraryIdentifier.getVersion(), e.getMessage());
+                    } else {
+                        this.compiled.incrementAndGet();
+                    }
+                }).exceptionally(e -> null));
+            }
+
+            CompletableFuture.allOf(progress.toArray(new CompletableFuture<?>[progress.size()])).join();
+
+            this.endTime = System.currentTimeMillis();
+            this.state = State.COMPLETED;
+            logger.info("Precompiled {} libraries ({} failed) in {} ms", this.compiled.get(), this.failed.get(),
+                    System.currentTimeMillis() - this.startTime);
+        } catch (RuntimeException e) {
+            // A broken warm-up must not keep the node out of rotation forever
+            this.endTime = System.currentTimeMillis();
+            this.state = State.FAILED;
+            logger.error("Library precompilation failed", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public boolean isReady() {
+        return this.state == State.COMPLETED || this.state == State.FAILED;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    public int getTotal() {
+        return this.total.get();
+    }
+
+    public int getCompiled() {
+        return this.compiled.get();
+    }
+
+    public int getFailed() {
+        return this.failed.get();
+    }
+
+    public long getElapsedMillis() {
+        if (this.state == State.NOT_STARTED) {
+            return 0;
+        }
+
+        return (this.isReady() ? this.endTime : System.currentTimeMillis()) - this.startTime;
+    }
+}
@@ -0,0 +1,99 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.opencds.cqf.common.config.HapiProperties;
+
+/**
+ * Bounded, process-wide cache of artifacts derived from a Measure and its
+ * Libraries, such as the generated HQMF and narrative and the
+ * $data-requirements module definition.
+ *
+ * Callers key entries by the Measure versionId and the versionIds of every
+ * Library it uses, so editing any of them yields a new key. Library narratives
+ * are keyed by the Library versionId alone. Each key holds any number of named
+ * artifacts, computed once. Cached artifacts are shared between requests and
+ * must not be modified.
+ */
+public class MeasureArtifactCache {
+
+    private static class Holder {
+        private static final MeasureArtifactCache instance = new MeasureArtifactCache(
+                HapiProperties.getCqlMeasureArtifactCacheSize());
+    }
+
+    public static MeasureArtifactCache getInstance() {
+        return Holder.instance;
+    }
+
+    private final Cache<String, ConcurrentMap<String, Object>> cache;
+
+    public MeasureArtifactCache(long maximumSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * Returns the named artifact for the given key, computing it on a miss. A null
+     * key means the inputs are not versioned, and the artifact is always computed.
+     */
+    public <T> T get(String key, String artifact, Class<T> type, Supplier<T> supplier) {
+        if (key == null) {
+            return supplier.get();
+        }
+
+        ConcurrentMap<String, Object> artifacts;
+        try {
+            artifacts = this.cache.get(key, ConcurrentHashMap::new);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        // Not computeIfAbsent: suppliers may look up other artifacts for the same key
+        Object value = artifacts.get(artifact);
+        if (value == null) {
+            value = supplier.get();
+            Object existing = artifacts.putIfAbsent(artifact, value);
+            if (existing != null) {
+                value = existing;
+            }
+        }
+
+        return type.cast(value);
+    }
+
+    /**
+     * Returns the named artifact for the given key, or null if it has not been
+     * computed.
+     */
+    public <T> T getIfPresent(String key, String artifact, Class<T> type) {
+        if (key == null) {
+            return null;
+        }
+
+        ConcurrentMap<String, Object> artifacts = this.cache.getIfPresent(key);
+        return artifacts != null ? type.cast(artifacts.get(artifact)) : null;
+    }
+
+    public void put(String key, String artifact, Object value) {
+        try {
+            this.cache.get(key, ConcurrentHashMap::new).put(artifact, value);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+}
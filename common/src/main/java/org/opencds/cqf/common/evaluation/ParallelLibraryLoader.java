@@ -0,0 +1,211 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.cqframework.cql.cql2elm.LibrarySourceLoader;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles a set of libraries and everything they include into a
+ * {@link CompiledLibraryCache}.
+ *
+ * The include graph is discovered up front from the library sources. Each
+ * library is then compiled on a worker pool as soon as its includes are
+ * compiled, so independent libraries are translated concurrently and every
+ * library is translated exactly once.
+ */
+public class ParallelLibraryLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelLibraryLoader.class);
+
+    // include <qualifiedIdentifier> [version '<version>'] [called <identifier>]
+    private static final Pattern INCLUDE = Pattern.compile(
+            "^\\s*include\\s+((?:\"[^\"]+\"|[\\w]+)(?:\\.(?:\"[^\"]+\"|[\\w]+))*)(?:\\s+version\\s+'([^']+)')?",
+            Pattern.MULTILINE);
+    private static final Pattern COMMENT = Pattern.compile("//[^\\r\\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+
+    private static final ExecutorService defaultExecutor = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), new DaemonThreadFactory("library-translator"));
+
+    private final LibrarySourceLoader sourceLoader;
+    private final CompiledLibraryCache cache;
+    private final ExecutorService executor;
+
+    public ParallelLibraryLoader(LibrarySourceLoader sourceLoader, CompiledLibraryCache cache) {
+        this(sourceLoader, cache, defaultExecutor);
+    }
+
+    public ParallelLibraryLoader(LibrarySourceLoader sourceLoader, CompiledLibraryCache cache,
+            ExecutorService executor) {
+        this.sourceLoader = sourceLoader;
+        this.cache = cache;
+        this.executor = executor;
+    }
+
+    /**
+     * Compiles the given libraries and their includes, blocking until all of them
+     * are in the cache. Errors compiling any of the given libraries are rethrown.
+     */
+    public void compile(List<VersionedIdentifier> libraryIdentifiers) {
+        for (CompletableFuture<Void> task : compileAsync(libraryIdentifiers)) {
+            try {
+                task.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Schedules compilation of the given libraries and their includes. Returns one
+     * task per given library, in the same order, completing when that library is
+     * in the cache.
+     */
+    public List<CompletableFuture<Void>> compileAsync(List<VersionedIdentifier> libraryIdentifiers) {
+        Map<String, VersionedIdentifier> identifiers = new LinkedHashMap<>();
+        Map<String, List<String>> includes = new LinkedHashMap<>();
+        for (VersionedIdentifier libraryIdentifier : libraryIdentifiers) {
+            discover(libraryIdentifier, identifiers, includes);
+        }
+
+        Map<String, CompletableFuture<Void>> tasks = new LinkedHashMap<>();
+        for (String key : identifiers.keySet()) {
+            schedule(key, identifiers, includes, tasks, new HashSet<>());
+        }
+
+        List<CompletableFuture<Void>> result = new ArrayList<>();
+        for (VersionedIdentifier libraryIdentifier : libraryIdentifiers) {
+            result.add(tasks.get(mangleIdentifier(libraryIdentifier)));
+        }
+
+        return result;
+    }
+
+    private void discover(VersionedIdentifier libraryIdentifier, Map<String, VersionedIdentifier> identifiers,
+            Map<String, List<String>> includes) {
+        String key = mangleIdentifier(libraryIdentifier);
+        if (identifiers.containsKey(key)) {
+            return;
+        }
+
+        identifiers.put(key, libraryIdentifier);
+        List<String> dependencies = new ArrayList<>();
+        includes.put(key, dependencies);
+
+        String source = readSource(libraryIdentifier);
+        if (source == null) {
+            return;
+        }
+
+        for (VersionedIdentifier include : parseIncludes(source)) {
+            dependencies.add(mangleIdentifier(include));
+            discover(include, identifiers, includes);
+        }
+    }
+
+    /**
+     * Returns the libraries named by the include statements of the given CQL
+     * source, without translating it.
+     */
+    public static List<VersionedIdentifier> parseIncludes(String source) {
+        List<VersionedIdentifier> includes = new ArrayList<>();
+        Matcher matcher = INCLUDE.matcher(COMMENT.matcher(source).replaceAll(""));
+        while (matcher.find()) {
+            String id = matcher.group(1).replace("\"", "");
+            includes.add(new VersionedIdentifier().withId(id.substring(id.lastIndexOf('.') + 1))
+                    .withVersion(matcher.group(2)));
+        }
+
+        return includes;
+    }
+
+    private CompletableFuture<Void> schedule(String key, Map<String, VersionedIdentifier> identifiers,
+            Map<String, List<String>> includes, Map<String, CompletableFuture<Void>> tasks, Set<String> path) {
+        if (tasks.containsKey(key)) {
+            return tasks.get(key);
+        }
+
+        if (!path.add(key)) {
+            // Circular include. The translator reports it when the library is compiled.
+            return CompletableFuture.completedFuture(null);
+        }
+
+        List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+        for (String include : includes.get(key)) {
+            // A failed include is not fatal here; if it matters, compiling this
+            // library reports the error.
+            dependencies.add(schedule(include, identifiers, includes, tasks, path).exceptionally(e -> null));
+        }
+        path.remove(key);
+
+        VersionedIdentifier libraryIdentifier = identifiers.get(key);
+        CompletableFuture<Void> task = CompletableFuture
+                .allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]))
+                .thenRunAsync(() -> createWorkerLoader().load(libraryIdentifier), this.executor);
+        tasks.put(key, task);
+        return task;
+    }
+
+    private LibraryLoader createWorkerLoader() {
+        CachingLibraryManager libraryManager = new CachingLibraryManager(this.cache);
+        libraryManager.getLibrarySourceLoader().clearProviders();
+        libraryManager.getLibrarySourceLoader().registerProvider(this.sourceLoader::getLibrarySource);
+        return new LibraryLoader(libraryManager, this.cache.getModelManager());
+    }
+
+    private String readSource(VersionedIdentifier libraryIdentifier) {
+        try {
+            InputStream source = this.sourceLoader.getLibrarySource(new org.hl7.elm.r1.VersionedIdentifier()
+                    .withId(libraryIdentifier.getId()).withVersion(libraryIdentifier.getVersion()));
+            return source == null ? null : IOUtils.toString(source, StandardCharsets.UTF_8);
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Unable to read source for library {}", mangleIdentifier(libraryIdentifier), e);
+            return null;
+        }
+    }
+
+    private static String mangleIdentifier(VersionedIdentifier libraryIdentifier) {
+        String id = libraryIdentifier.getId();
+        String version = libraryIdentifier.getVersion();
+
+        return version == null ? id : id + "-" + version;
+    }
+
+    public static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        public DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, this.prefix + "-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
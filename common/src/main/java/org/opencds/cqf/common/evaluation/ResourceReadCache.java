@@ -0,0 +1,168 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+
+/**
+ * Bounded read-through cache in front of IFhirResourceDao.read, for reference
+ * data such as Patients, Practitioners, Organizations, Measures and Libraries
+ * read repeatedly while evaluating.
+ *
+ * Entries are keyed by resource id and versionId, and expire after a fixed
+ * time. Registered with the JPA interceptor service, the cache drops every
+ * version of a resource when it is created, updated or deleted: before the
+ * transaction commits, and again once it has completed. A read of the current
+ * version is not cached if an invalidation happened while it was in flight.
+ * Each read returns a copy, so callers may modify what they read.
+ */
+@Interceptor
+public class ResourceReadCache {
+
+    // The current version is cached under an empty versionId
+    private static final String CURRENT = "";
+
+    private final FhirContext fhirContext;
+    private final Cache<String, ConcurrentMap<String, IBaseResource>> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ResourceReadCache(FhirContext fhirContext, long maximumSize, long expirySeconds) {
+        this.fhirContext = fhirContext;
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(expirySeconds, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * Reads the given resource, or the given version of it, through the cache.
+     * Resources that cannot be read are not cached.
+     */
+    public <T extends IBaseResource> T read(IFhirResourceDao<T> dao, IIdType id) {
+        if (id == null || !id.hasIdPart()) {
+            return dao.read(id);
+        }
+
+        String key = this.key(dao.getResourceType(), id.getIdPart());
+        String version = id.hasVersionIdPart() ? id.getVersionIdPart() : CURRENT;
+
+        ConcurrentMap<String, IBaseResource> versions;
+        try {
+            versions = this.cache.get(key, ConcurrentHashMap::new);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        IBaseResource resource = versions.get(version);
+        if (resource != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+            long invalidations = this.invalidations.get();
+            resource = dao.read(id);
+            if (resource == null) {
+                return null;
+            }
+            // Versioned reads never go stale
+            if (!version.equals(CURRENT) || invalidations == this.invalidations.get()) {
+                versions.put(version, resource);
+            }
+        }
+
+        return dao.getResourceType().cast(this.copy(resource));
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long total = hits + this.misses.get();
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+        this.invalidateUntilCommitted(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+        this.invalidateUntilCommitted(theOldResource);
+        this.invalidateUntilCommitted(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+        this.invalidateUntilCommitted(theResource);
+    }
+
+    // Reads between the precommit hook and the commit still see the old version,
+    // so invalidate again once the transaction completes
+    private void invalidateUntilCommitted(IBaseResource resource) {
+        this.invalidate(resource);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    invalidate(resource);
+                }
+            });
+        }
+    }
+
+    private void invalidate(IBaseResource resource) {
+        if (resource == null || resource.getIdElement() == null || !resource.getIdElement().hasIdPart()) {
+            return;
+        }
+
+        this.invalidations.incrementAndGet();
+        if (this.cache.size() == 0) {
+            return;
+        }
+
+        this.cache.invalidate(this.key(resource.getClass(), resource.getIdElement().getIdPart()));
+    }
+
+    private String key(Class<? extends IBaseResource> resourceType, String id) {
+        return this.fhirContext.getResourceDefinition(resourceType).getName() + "/" + id;
+    }
+
+    private IBaseResource copy(IBaseResource resource) {
+        IBaseResource copy = this.fhirContext.getResourceDefinition(resource).newInstance();
+        this.fhirContext.newTerser().cloneInto(resource, copy, false);
+        copy.setId(resource.getIdElement().getValue());
+        return copy;
+    }
+}
@@ -0,0 +1,71 @@
+package org.opencds.cqf.common.helpers;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Runs tasks on a shared executor with at most a fixed number queued or
+ * running, and hands their results to a consumer in submission order.
+ *
+ * Submitting blocks on the oldest task once the window is full, so finished
+ * results don't pile up. Not thread-safe: a window belongs to the thread
+ * submitting to it.
+ */
+public class BoundedTaskWindow<K, T, E extends Exception> {
+
+    public interface ResultConsumer<K, T, E extends Exception> {
+        /**
+         * Called with the result of the task for the given key, or with the cause
+         * of its failure, in which case the result is null.
+         */
+        void accept(K key, T result, Throwable failure) throws E;
+    }
+
+    private final ExecutorService executor;
+    private final int size;
+    private final ResultConsumer<K, T, E> consumer;
+    private final Deque<Pair<K, CompletableFuture<T>>> tasks = new ArrayDeque<>();
+
+    public BoundedTaskWindow(ExecutorService executor, int size, ResultConsumer<K, T, E> consumer) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+
+        this.executor = executor;
+        this.size = size;
+        this.consumer = consumer;
+    }
+
+    public void submit(K key, Supplier<T> task) throws E {
+        this.drain(this.size - 1);
+        this.tasks.add(Pair.of(key, CompletableFuture.supplyAsync(task, this.executor)));
+    }
+
+    /**
+     * Waits for every submitted task and hands over its result.
+     */
+    public void drain() throws E {
+        this.drain(0);
+    }
+
+    private void drain(int remaining) throws E {
+        while (this.tasks.size() > remaining) {
+            Pair<K, CompletableFuture<T>> task = this.tasks.poll();
+            T result;
+            try {
+                result = task.getRight().join();
+            } catch (CompletionException e) {
+                this.consumer.accept(task.getLeft(), null, e.getCause() != null ? e.getCause() : e);
+                continue;
+            }
+
+            this.consumer.accept(task.getLeft(), result, null);
+        }
+    }
+}
@@ -47,18 +47,17 @@ public class TranslatorHelper {
                 modelManager);
     }
 
+    public static CqlTranslator.Options[] getTranslatorOptions() {
+        return new CqlTranslator.Options[] { CqlTranslator.Options.EnableAnnotations,
+                CqlTranslator.Options.EnableLocators, CqlTranslator.Options.DisableListDemotion,
+                CqlTranslator.Options.DisableListPromotion, CqlTranslator.Options.DisableMethodInvocation };
+    }
+
     public static CqlTranslator getTranslator(InputStream cqlStream, LibraryManager libraryManager,
             ModelManager modelManager) {
-        ArrayList<CqlTranslator.Options> options = new ArrayList<>();
-        options.add(CqlTranslator.Options.EnableAnnotations);
-        options.add(CqlTranslator.Options.EnableLocators);
-        options.add(CqlTranslator.Options.DisableListDemotion);
-        options.add(CqlTranslator.Options.DisableListPromotion);
-        options.add(CqlTranslator.Options.DisableMethodInvocation);
         CqlTranslator translator;
         try {
-            translator = CqlTranslator.fromStream(cqlStream, modelManager, libraryManager,
-                    options.toArray(new CqlTranslator.Options[options.size()]));
+            translator = CqlTranslator.fromStream(cqlStream, modelManager, libraryManager, getTranslatorOptions());
         } catch (IOException e) {
             throw new IllegalArgumentException(
                     String.format("Errors occurred translating library: %s", e.getMessage()));
@@ -0,0 +1,243 @@
+package org.opencds.cqf.common.helpers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes an indented XML document straight to a Writer, with the same
+ * elem/a/up/root navigation as XMLBuilder2 but without building a DOM.
+ *
+ * The builder is a single cursor: elements are written in the order they are
+ * added, and moving up or back to the root closes the elements below it.
+ * Elements without children are written as empty elements. Names may use the
+ * prefixes declared on the root with ns.
+ */
+public class XmlStreamBuilder {
+
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    private final Writer writer;
+    private final XMLStreamWriter xml;
+    private final Map<String, String> namespaces = new HashMap<>();
+
+    // One entry per open element, true once the element has children
+    private final Deque<Boolean> open = new ArrayDeque<>();
+
+    // The element being built, written once its attributes are known
+    private String pendingName;
+    private final List<String[]> pendingAttributes = new ArrayList<>();
+    private final List<String[]> pendingNamespaces = new ArrayList<>();
+
+    private boolean closed;
+
+    private XmlStreamBuilder(Writer writer, String rootName) {
+        this.writer = writer;
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+            this.xml = outputFactory.createXMLStreamWriter(writer);
+        } catch (IOException | XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+
+        this.pendingName = rootName;
+    }
+
+    public static XmlStreamBuilder create(Writer writer, String rootName) {
+        return new XmlStreamBuilder(writer, rootName);
+    }
+
+    /**
+     * Declares the default namespace. Namespaces can only be declared on the
+     * root.
+     */
+    public XmlStreamBuilder ns(String uri) {
+        return this.ns("", uri);
+    }
+
+    public XmlStreamBuilder ns(String prefix, String uri) {
+        if (this.pendingName == null || !this.open.isEmpty()) {
+            throw new IllegalStateException("Namespaces can only be declared on the root element");
+        }
+
+        this.namespaces.put(prefix, uri);
+        this.pendingNamespaces.add(new String[] { prefix, uri });
+        return this;
+    }
+
+    public XmlStreamBuilder elem(String name) {
+        this.flush(false);
+        this.pendingName = name;
+        return this;
+    }
+
+    public XmlStreamBuilder a(String name, String value) {
+        if (this.pendingName == null) {
+            throw new IllegalStateException(
+                    String.format("Attribute %s must be added before the element's children", name));
+        }
+
+        this.pendingAttributes.add(new String[] { name, value != null ? value : "" });
+        return this;
+    }
+
+    /**
+     * Closes the current element. Like XMLBuilder2, moving up from the root
+     * stays at the root.
+     */
+    public XmlStreamBuilder up() {
+        if (this.pendingName != null) {
+            this.flush(true);
+            return this;
+        }
+
+        if (this.open.size() > 1) {
+            this.end();
+        }
+
+        return this;
+    }
+
+    public XmlStreamBuilder up(int steps) {
+        for (int i = 0; i < steps; i++) {
+            this.up();
+        }
+
+        return this;
+    }
+
+    public XmlStreamBuilder root() {
+        this.flush(true);
+        while (this.open.size() > 1) {
+            this.end();
+        }
+
+        return this;
+    }
+
+    /**
+     * Closes every open element and flushes the document. The underlying Writer
+     * is left open.
+     */
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+
+        this.flush(true);
+        while (!this.open.isEmpty()) {
+            this.end();
+        }
+
+        try {
+            this.xml.writeEndDocument();
+            this.xml.close();
+            this.writer.write(System.lineSeparator());
+            this.writer.flush();
+        } catch (IOException | XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+
+        this.closed = true;
+    }
+
+    private void flush(boolean empty) {
+        if (this.pendingName == null) {
+            return;
+        }
+
+        if (this.closed) {
+            throw new IllegalStateException("The document has been closed");
+        }
+
+        // The root stays open for elements added after it is flushed
+        empty = empty && !this.open.isEmpty();
+
+        try {
+            if (!this.open.isEmpty()) {
+                this.open.pop();
+                this.open.push(true);
+            }
+            this.indent(this.open.size());
+
+            String[] name = this.resolve(this.pendingName);
+            if (empty) {
+                this.xml.writeEmptyElement(name[0], name[1], name[2]);
+            } else {
+                this.xml.writeStartElement(name[0], name[1], name[2]);
+            }
+
+            for (String[] namespace : this.pendingNamespaces) {
+                if (namespace[0].isEmpty()) {
+                    this.xml.writeDefaultNamespace(namespace[1]);
+                } else {
+                    this.xml.writeNamespace(namespace[0], namespace[1]);
+                }
+            }
+
+            for (String[] attribute : this.pendingAttributes) {
+                String[] attributeName = this.resolve(attribute[0]);
+                if (attributeName[0].isEmpty()) {
+                    this.xml.writeAttribute(attributeName[1], attribute[1]);
+                } else {
+                    this.xml.writeAttribute(attributeName[0], attributeName[2], attributeName[1], attribute[1]);
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (!empty) {
+            this.open.push(false);
+        }
+
+        this.pendingName = null;
+        this.pendingAttributes.clear();
+        this.pendingNamespaces.clear();
+    }
+
+    private void end() {
+        try {
+            if (this.open.pop()) {
+                this.indent(this.open.size());
+            }
+            this.xml.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void indent(int depth) throws XMLStreamException {
+        StringBuilder indent = new StringBuilder(System.lineSeparator());
+        for (int i = 0; i < depth; i++) {
+            indent.append("  ");
+        }
+        this.xml.writeCharacters(indent.toString());
+    }
+
+    // Splits a name into prefix, local name and namespace uri
+    private String[] resolve(String name) {
+        int colon = name.indexOf(':');
+        if (colon < 0) {
+            String uri = this.namespaces.get("");
+            return new String[] { "", name, uri != null ? uri : "" };
+        }
+
+        String prefix = name.substring(0, colon);
+        String uri = this.namespaces.get(prefix);
+        if (uri == null) {
+            throw new IllegalArgumentException(String.format("Undeclared namespace prefix %s", prefix));
+        }
+
+        return new String[] { prefix, name.substring(colon + 1), uri };
+    }
+}
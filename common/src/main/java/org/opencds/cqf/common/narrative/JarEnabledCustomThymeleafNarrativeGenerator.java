@@ -9,6 +9,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.base.Charsets;
 
@@ -22,6 +24,9 @@ import ca.uhn.fhir.narrative2.ThymeleafNarrativeGenerator;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 
 public class JarEnabledCustomThymeleafNarrativeGenerator extends ThymeleafNarrativeGenerator {
+	// Manifests are read from the classpath, a jar or the filesystem once per set of property files
+	private static final Map<List<String>, NarrativeTemplateManifest> manifests = new ConcurrentHashMap<>();
+
 	private List<String> myPropertyFile;
 
 	public JarEnabledCustomThymeleafNarrativeGenerator(String... thePropertyFile) {
@@ -46,12 +51,16 @@ public class JarEnabledCustomThymeleafNarrativeGenerator extends ThymeleafNarrat
 		}
 
 		List<String> propFileName = getPropertyFile();
-		try {
-			NarrativeTemplateManifest manifest = forManifestFileLocation(propFileName);
-			setManifest(manifest);
-		} catch (IOException e) {
-			throw new InternalErrorException(e);
+		NarrativeTemplateManifest manifest = manifests.get(propFileName);
+		if (manifest == null) {
+			try {
+				manifest = forManifestFileLocation(propFileName);
+			} catch (IOException e) {
+				throw new InternalErrorException(e);
+			}
+			manifests.putIfAbsent(propFileName, manifest);
 		}
+		setManifest(manifest);
 
 		myInitialized = true;
 	}
@@ -0,0 +1,293 @@
+package org.opencds.cqf.common.providers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.ParallelLibraryLoader;
+import org.opencds.cqf.common.evaluation.ParallelLibraryLoader.DaemonThreadFactory;
+import org.opencds.cqf.common.helpers.BoundedTaskWindow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * Refreshes the generated content of every stored Library and Measure in one
+ * call, for any FHIR version.
+ *
+ * Libraries are refreshed in include order, one level at a time, with each
+ * level in parallel. Included libraries are resolved through the shared
+ * compiled library cache, so a library included by many others is compiled
+ * once for the whole run. Measures are refreshed after all Libraries have been
+ * saved.
+ *
+ * Resources are searched a page at a time, and only the ids and includes of
+ * Libraries are kept between pages. Refreshes run on a pool shared by all
+ * requests, with a bounded number in flight, and results are saved in
+ * transactions of at most chunkSize resources. Each update is conditional on
+ * the version that was refreshed, so a resource changed in the meantime is
+ * reported as failed rather than overwritten.
+ */
+public abstract class BaseRefreshGeneratedContentProvider<LibraryType extends IBaseResource,
+        MeasureType extends IBaseResource> {
+
+    private static final Logger logger = LoggerFactory.getLogger(BaseRefreshGeneratedContentProvider.class);
+
+    private static final int THREADS = Math.max(1, HapiProperties.getCqlRefreshThreads());
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+            new DaemonThreadFactory("refresh-generated-content"));
+    // Refreshes queued or running per request, so finished results don't pile up
+    private static final int WINDOW = THREADS * 2;
+
+    private DaoRegistry registry;
+    private Class<LibraryType> libraryType;
+    private Class<MeasureType> measureType;
+
+    protected BaseRefreshGeneratedContentProvider(DaoRegistry registry, Class<LibraryType> libraryType,
+            Class<MeasureType> measureType) {
+        this.registry = registry;
+        this.libraryType = libraryType;
+        this.measureType = measureType;
+    }
+
+    /**
+     * Returns the CQL of the given Library, or null if it is not a named logic
+     * Library with CQL content.
+     */
+    protected abstract String getCql(LibraryType library);
+
+    protected abstract String getName(LibraryType library);
+
+    protected abstract LibraryType refreshLibrary(LibraryType library);
+
+    protected abstract MeasureType refreshMeasure(MeasureType measure);
+
+    /**
+     * Returns a transaction that PUTs each resource, with the given If-Match
+     * header when there is one.
+     */
+    protected abstract IBaseBundle createTransaction(List<Pair<IBaseResource, String>> updates);
+
+    protected Progress refreshGeneratedContent(RequestDetails theRequestDetails, String type, Integer chunkSize) {
+        boolean refreshLibraries = type == null || type.equals("Library");
+        boolean refreshMeasures = type == null || type.equals("Measure");
+        if (!refreshLibraries && !refreshMeasures) {
+            throw new IllegalArgumentException(
+                    String.format("Unsupported type %s. Expected Library or Measure.", type));
+        }
+
+        int size = chunkSize != null ? chunkSize : HapiProperties.getCqlRefreshChunkSize();
+        if (size < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+        }
+
+        Progress progress = new Progress(theRequestDetails, size);
+        if (refreshLibraries) {
+            IFhirResourceDao<LibraryType> libraryDao = this.registry.getResourceDao(this.libraryType);
+            Map<IIdType, String> names = new LinkedHashMap<>();
+            Map<String, Set<String>> includes = new HashMap<>();
+            this.search(this.libraryType, size, library -> {
+                String cql = this.getCql(library);
+                if (cql == null) {
+                    return;
+                }
+
+                String name = this.getName(library);
+                names.put(library.getIdElement().toUnqualifiedVersionless(), name);
+                Set<String> libraryIncludes = includes.computeIfAbsent(name, x -> new HashSet<>());
+                for (VersionedIdentifier include : ParallelLibraryLoader.parseIncludes(cql)) {
+                    libraryIncludes.add(include.getId());
+                }
+            });
+
+            progress.total += names.size();
+            List<List<IIdType>> levels = getIncludeLevels(names, includes);
+            logger.info("Refreshing {} Libraries in {} include levels", names.size(), levels.size());
+            for (List<IIdType> level : levels) {
+                BoundedTaskWindow<IIdType, LibraryType, RuntimeException> window = this.createWindow(progress);
+                for (IIdType id : level) {
+                    window.submit(id, () -> this.refreshLibrary(libraryDao.read(id)));
+                }
+                window.drain();
+            }
+
+            // Measures are generated from the refreshed Libraries
+            progress.flush();
+        }
+
+        if (refreshMeasures) {
+            int before = progress.total;
+            BoundedTaskWindow<IIdType, MeasureType, RuntimeException> window = this.createWindow(progress);
+            this.search(this.measureType, size, measure -> {
+                progress.total++;
+                window.submit(measure.getIdElement().toUnqualifiedVersionless(), () -> this.refreshMeasure(measure));
+            });
+            window.drain();
+            logger.info("Refreshed {} Measures", progress.total - before);
+            progress.flush();
+        }
+
+        return progress;
+    }
+
+    // Saves results in order as they complete
+    private <T extends IBaseResource> BoundedTaskWindow<IIdType, T, RuntimeException> createWindow(
+            Progress progress) {
+        return new BoundedTaskWindow<>(executor, WINDOW, (id, resource, failure) -> {
+            if (failure != null) {
+                progress.fail(id.getValue(), failure.getMessage());
+            } else {
+                progress.add(resource);
+            }
+        });
+    }
+
+    private <T extends IBaseResource> void search(Class<T> type, int pageSize, Consumer<T> consumer) {
+        IBundleProvider bundleProvider = this.registry.getResourceDao(type).search(new SearchParameterMap());
+        for (int from = 0;; from += pageSize) {
+            List<IBaseResource> page = bundleProvider.getResources(from, from + pageSize);
+            if (page == null || page.isEmpty()) {
+                return;
+            }
+
+            for (IBaseResource resource : page) {
+                consumer.accept(type.cast(resource));
+            }
+        }
+    }
+
+    // Groups the libraries so that each only includes libraries in earlier groups
+    private static List<List<IIdType>> getIncludeLevels(Map<IIdType, String> names,
+            Map<String, Set<String>> includes) {
+        Map<String, Integer> depths = new HashMap<>();
+        TreeMap<Integer, List<IIdType>> levels = new TreeMap<>();
+        for (Map.Entry<IIdType, String> library : names.entrySet()) {
+            int depth = getDepth(library.getValue(), includes, depths, new HashSet<>());
+            levels.computeIfAbsent(depth, x -> new ArrayList<>()).add(library.getKey());
+        }
+
+        return new ArrayList<>(levels.values());
+    }
+
+    private static int getDepth(String name, Map<String, Set<String>> includes, Map<String, Integer> depths,
+            Set<String> path) {
+        Integer depth = depths.get(name);
+        if (depth != null) {
+            return depth;
+        }
+
+        // Libraries that are not stored, and circular includes, add no depth
+        if (!includes.containsKey(name) || !path.add(name)) {
+            return -1;
+        }
+
+        depth = 0;
+        for (String include : includes.get(name)) {
+            depth = Math.max(depth, getDepth(include, includes, depths, path) + 1);
+        }
+        path.remove(name);
+
+        depths.put(name, depth);
+        return depth;
+    }
+
+    private static String getIfMatch(IBaseResource resource) {
+        String versionId = resource.getIdElement().hasVersionIdPart() ? resource.getIdElement().getVersionIdPart()
+                : resource.getMeta().getVersionId();
+        return versionId != null ? "W/\"" + versionId + "\"" : null;
+    }
+
+    protected class Progress {
+        private final RequestDetails requestDetails;
+        private final int chunkSize;
+        private final long start = System.currentTimeMillis();
+        private final List<IBaseResource> pending = new ArrayList<>();
+        private final Map<String, String> failures = new LinkedHashMap<>();
+        private int total;
+        private int refreshed;
+        private int transactions;
+
+        Progress(RequestDetails requestDetails, int chunkSize) {
+            this.requestDetails = requestDetails;
+            this.chunkSize = chunkSize;
+        }
+
+        public int getTotal() {
+            return this.total;
+        }
+
+        public int getRefreshed() {
+            return this.refreshed;
+        }
+
+        public int getTransactions() {
+            return this.transactions;
+        }
+
+        public long getElapsedMillis() {
+            return System.currentTimeMillis() - this.start;
+        }
+
+        public Map<String, String> getFailures() {
+            return Collections.unmodifiableMap(this.failures);
+        }
+
+        void add(IBaseResource resource) {
+            this.pending.add(resource);
+            if (this.pending.size() >= this.chunkSize) {
+                this.flush();
+            }
+        }
+
+        void fail(String reference, String message) {
+            logger.warn("Unable to refresh {}: {}", reference, message);
+            this.failures.put(reference, message);
+        }
+
+        void flush() {
+            if (this.pending.isEmpty()) {
+                return;
+            }
+
+            List<Pair<IBaseResource, String>> updates = new ArrayList<>();
+            for (IBaseResource resource : this.pending) {
+                updates.add(Pair.of(resource, getIfMatch(resource)));
+            }
+
+            try {
+                IFhirSystemDao<IBaseBundle, ?> systemDao = registry.getSystemDao();
+                systemDao.transaction(this.requestDetails, createTransaction(updates));
+                this.refreshed += this.pending.size();
+            } catch (RuntimeException e) {
+                for (IBaseResource resource : this.pending) {
+                    this.fail(resource.getIdElement().toUnqualifiedVersionless().getValue(), e.getMessage());
+                }
+            }
+
+            this.pending.clear();
+            this.transactions++;
+            logger.info("Refreshed {} of {} artifacts, {} failed", this.refreshed, this.total, this.failures.size());
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package org.opencds.cqf.common.providers;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.evaluation.ParallelLibraryLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves CQL (*.cql) and ELM (*.xml) libraries from a local directory, for
+ * iterating on libraries without writing them to the database.
+ *
+ * Libraries are identified by their library declaration (CQL) or identifier
+ * element (ELM), not the file name. Once started, the directory is watched and
+ * listeners are told which libraries changed, along with every library in the
+ * directory that includes them.
+ */
+public class DirectoryLibrarySourceProvider implements org.cqframework.cql.cql2elm.LibrarySourceProvider, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryLibrarySourceProvider.class);
+
+    // Files larger than this are read through a memory-mapped buffer
+    private static final long MAPPED_READ_THRESHOLD = 256 * 1024;
+
+    private static final Pattern CQL_LIBRARY = Pattern.compile(
+            "^\\s*library\\s+((?:\"[^\"]+\"|[\\w]+)(?:\\.(?:\"[^\"]+\"|[\\w]+))*)(?:\\s+version\\s+'([^']+)')?",
+            Pattern.MULTILINE);
+    private static final Pattern ELM_IDENTIFIER = Pattern.compile("<(?:\\w+:)?identifier\\b([^>]*)>");
+    private static final Pattern ELM_ID = Pattern.compile("\\bid=\"([^\"]+)\"");
+    private static final Pattern ELM_VERSION = Pattern.compile("\\bversion=\"([^\"]+)\"");
+
+    private static class LibraryFile {
+        private final Path path;
+        private final String name;
+        private final String version;
+        private final boolean elm;
+        private final List<VersionedIdentifier> includes;
+
+        LibraryFile(Path path, String name, String version, boolean elm, List<VersionedIdentifier> includes) {
+            this.path = path;
+            this.name = name;
+            this.version = version;
+            this.elm = elm;
+            this.includes = includes;
+        }
+    }
+
+    private final Path directory;
+    private final Map<Path, LibraryFile> files = new ConcurrentHashMap<>();
+    private final List<Consumer<List<VersionedIdentifier>>> listeners = new CopyOnWriteArrayList<>();
+    private WatchService watchService;
+
+    public DirectoryLibrarySourceProvider(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            throw new IllegalArgumentException(String.format("Library directory %s does not exist", directory));
+        }
+
+        this.directory = directory;
+        this.scan();
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    public void addListener(Consumer<List<VersionedIdentifier>> listener) {
+        this.listeners.add(listener);
+    }
+
+    @Override
+    public InputStream getLibrarySource(org.hl7.elm.r1.VersionedIdentifier libraryIdentifier) {
+        LibraryFile file = this.find(libraryIdentifier.getId(), libraryIdentifier.getVersion(), false);
+        if (file == null) {
+            return null;
+        }
+
+        byte[] content = read(file.path);
+        return content != null ? new ByteArrayInputStream(content) : null;
+    }
+
+    /**
+     * Returns the ELM XML for the given library, or null if the directory has CQL
+     * for it, or has neither.
+     */
+    public String getElm(org.hl7.elm.r1.VersionedIdentifier libraryIdentifier) {
+        if (this.find(libraryIdentifier.getId(), libraryIdentifier.getVersion(), false) != null) {
+            return null;
+        }
+
+        LibraryFile file = this.find(libraryIdentifier.getId(), libraryIdentifier.getVersion(), true);
+        if (file == null) {
+            return null;
+        }
+
+        byte[] content = read(file.path);
+        return content != null ? new String(content, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Starts watching the directory for changes on a background thread.
+     */
+    public synchronized void start() {
+        if (this.watchService != null) {
+            return;
+        }
+
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            this.directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                    String.format("Unable to watch library directory %s: %s", this.directory, e.getMessage()));
+        }
+
+        WatchService service = this.watchService;
+        Thread thread = new Thread(() -> this.watch(service), "library-directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Watching {} for library changes", this.directory);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.watchService != null) {
+            this.watchService.close();
+            this.watchService = null;
+        }
+    }
+
+    private void watch(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Set<String> changed = new LinkedHashSet<>();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    changed.addAll(this.scan());
+                } else {
+                    changed.addAll(this.refresh(this.directory.resolve((Path) event.context())));
+                }
+            }
+            key.reset();
+
+            if (!changed.isEmpty()) {
+                this.notifyListeners(changed);
+            }
+        }
+    }
+
+    private void notifyListeners(Set<String> changed) {
+        // The changed libraries and, transitively, the libraries that include them
+        Set<String> affected = new LinkedHashSet<>(changed);
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (LibraryFile file : this.files.values()) {
+                if (!affected.contains(file.name)) {
+                    for (VersionedIdentifier include : file.includes) {
+                        if (affected.contains(include.getId())) {
+                            added = affected.add(file.name);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        List<VersionedIdentifier> libraries = new ArrayList<>();
+        for (LibraryFile file : this.files.values()) {
+            if (affected.contains(file.name)) {
+                libraries.add(new VersionedIdentifier().withId(file.name).withVersion(file.version));
+            }
+        }
+
+        logger.info("Libraries changed in {}: {}", this.directory, affected);
+        for (Consumer<List<VersionedIdentifier>> listener : this.listeners) {
+            try {
+                listener.accept(libraries);
+            } catch (RuntimeException e) {
+                logger.warn("Library change listener failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Re-indexes every file, returning the names of all libraries seen
+    private Set<String> scan() {
+        Set<String> names = new LinkedHashSet<>();
+        for (LibraryFile file : this.files.values()) {
+            names.add(file.name);
+        }
+        this.files.clear();
+
+        try (Stream<Path> paths = Files.list(this.directory)) {
+            paths.forEach(x -> names.addAll(this.refresh(x)));
+        } catch (IOException e) {
+            logger.warn("Unable to list library directory {}: {}", this.directory, e.getMessage());
+        }
+
+        return names;
+    }
+
+    // Re-indexes one file, returning the names of the libraries it held before and after
+    private Set<String> refresh(Path path) {
+        Set<String> names = new LinkedHashSet<>();
+        LibraryFile previous = this.files.remove(path);
+        if (previous != null) {
+            names.add(previous.name);
+        }
+
+        String fileName = path.getFileName().toString();
+        boolean elm = fileName.endsWith(".xml");
+        if ((!elm && !fileName.endsWith(".cql")) || !Files.isRegularFile(path)) {
+            return names;
+        }
+
+        byte[] content = read(path);
+        if (content == null) {
+            return names;
+        }
+
+        LibraryFile file = elm ? parseElm(path, content) : parseCql(path, content);
+        if (file != null) {
+            this.files.put(path, file);
+            names.add(file.name);
+        }
+
+        return names;
+    }
+
+    private static LibraryFile parseCql(Path path, byte[] content) {
+        String source = new String(content, StandardCharsets.UTF_8);
+        Matcher matcher = CQL_LIBRARY.matcher(source);
+        if (!matcher.find()) {
+            logger.debug("Skipping {}, which has no library declaration", path);
+            return null;
+        }
+
+        String name = matcher.group(1).replace("\"", "");
+        return new LibraryFile(path, name.substring(name.lastIndexOf('.') + 1), matcher.group(2), false,
+                ParallelLibraryLoader.parseIncludes(source));
+    }
+
+    private static LibraryFile parseElm(Path path, byte[] content) {
+        // The library identifier is the first identifier element in the document
+        String header = new String(content, 0, Math.min(content.length, 8192), StandardCharsets.UTF_8);
+        Matcher identifier = ELM_IDENTIFIER.matcher(header);
+        if (!identifier.find()) {
+            logger.debug("Skipping {}, which has no library identifier", path);
+            return null;
+        }
+
+        Matcher id = ELM_ID.matcher(identifier.group(1));
+        if (!id.find()) {
+            return null;
+        }
+
+        Matcher version = ELM_VERSION.matcher(identifier.group(1));
+        return new LibraryFile(path, id.group(1), version.find() ? version.group(1) : null, true,
+                Collections.emptyList());
+    }
+
+    private LibraryFile find(String name, String version, boolean elm) {
+        LibraryFile latest = null;
+        for (LibraryFile file : this.files.values()) {
+            if (file.elm != elm || !file.name.equals(name)) {
+                continue;
+            }
+
+            if (version != null) {
+                if (version.equals(file.version)) {
+                    return file;
+                }
+            } else if (latest == null || compareVersions(latest.version, file.version) < 0) {
+                latest = file;
+            }
+        }
+
+        return latest;
+    }
+
+    private static int compareVersions(String version1, String version2) {
+        try {
+            return LibraryResolutionProvider.compareVersions(version1, version2);
+        } catch (NumberFormatException e) {
+            return version1.compareTo(version2);
+        }
+    }
+
+    private static byte[] read(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAPPED_READ_THRESHOLD) {
+                return Files.readAllBytes(path);
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] content = new byte[(int) size];
+            buffer.get(content);
+            return content;
+        } catch (IOException e) {
+            // Most likely the file was deleted or is mid-write; the next event re-reads it
+            logger.debug("Unable to read {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+}
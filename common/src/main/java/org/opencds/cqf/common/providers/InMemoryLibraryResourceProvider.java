@@ -1,18 +1,32 @@
 package org.opencds.cqf.common.providers;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
+/**
+ * A thread-safe, in-memory set of libraries indexed by id, by name and
+ * version, and by canonical url and version.
+ *
+ * Canonical urls may carry a version (url|version). The version may be exact,
+ * partial ("1.2" matches 1.2.x) or wildcarded ("1.x", "1.*"), in which case
+ * the highest matching version is returned. Without a version the highest
+ * version is returned.
+ */
 public class InMemoryLibraryResourceProvider<LibraryType> implements LibraryResolutionProvider<LibraryType> {
 
-    private Map<String, LibraryType> libraries = new HashMap<>();
+    // ConcurrentHashMap does not allow null keys, so libraries without a version are indexed under this
+    private static final String NO_VERSION = "";
+
+    private ConcurrentMap<String, LibraryType> libraries = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, ConcurrentMap<String, LibraryType>> librariesByName = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, ConcurrentMap<String, LibraryType>> librariesByUrl = new ConcurrentHashMap<>();
     private Function<LibraryType, String> getId;
     private Function<LibraryType, String> getName;
     private Function<LibraryType, String> getVersion;
+    private Function<LibraryType, String> getUrl;
 
     public InMemoryLibraryResourceProvider() {
     };
@@ -20,20 +34,32 @@ public class InMemoryLibraryResourceProvider<LibraryType> implements LibraryReso
     public InMemoryLibraryResourceProvider(Collection<LibraryType> initialLibraries,
             Function<LibraryType, String> getId, Function<LibraryType, String> getName,
             Function<LibraryType, String> getVersion) {
+        this(initialLibraries, getId, getName, getVersion, null);
+    }
+
+    public InMemoryLibraryResourceProvider(Collection<LibraryType> initialLibraries,
+            Function<LibraryType, String> getId, Function<LibraryType, String> getName,
+            Function<LibraryType, String> getVersion, Function<LibraryType, String> getUrl) {
 
         this.getId = getId;
         this.getName = getName;
         this.getVersion = getVersion;
+        this.getUrl = getUrl;
 
         for (LibraryType library : initialLibraries) {
             this.update(library);
         }
     }
 
+    public int size() {
+        return this.libraries.size();
+    }
+
     @Override
     public LibraryType resolveLibraryById(String libraryId) {
-        if (this.libraries.containsKey(libraryId)) {
-            return this.libraries.get(libraryId);
+        LibraryType library = this.libraries.get(libraryId);
+        if (library != null) {
+            return library;
         }
 
         throw new IllegalArgumentException(String.format("Could not resolve library id %s", libraryId));
@@ -41,9 +67,12 @@ public class InMemoryLibraryResourceProvider<LibraryType> implements LibraryReso
 
     @Override
     public LibraryType resolveLibraryByName(String libraryName, String libraryVersion) {
-        List<LibraryType> libraries = this.libraries.values().stream()
-                .filter(x -> this.getName.apply(x).equals(libraryName)).collect(Collectors.toList());
-        LibraryType library = LibraryResolutionProvider.selectFromList(libraries, libraryVersion, this.getVersion);
+        Map<String, LibraryType> versions = libraryName != null ? this.librariesByName.get(libraryName) : null;
+        LibraryType library = null;
+        if (versions != null) {
+            library = libraryVersion != null ? versions.get(libraryVersion)
+                    : LibraryResolutionProvider.selectFromList(versions.values(), null, this.getVersion);
+        }
 
         if (library == null) {
             throw new IllegalArgumentException(String.format("Could not resolve library name %s", libraryName));
@@ -53,14 +82,103 @@ public class InMemoryLibraryResourceProvider<LibraryType> implements LibraryReso
     }
 
     @Override
-    public void update(LibraryType library) {
-        this.libraries.put(this.getId.apply(library), library);
+    public LibraryType resolveLibraryByCanonicalUrl(String libraryUrl) {
+        if (libraryUrl == null) {
+            return null;
+        }
+
+        String[] parts = libraryUrl.split("\\|", 2);
+        Map<String, LibraryType> versions = this.librariesByUrl.get(parts[0]);
+        if (versions == null) {
+            return null;
+        }
+
+        String version = parts.length > 1 && !parts[1].isEmpty() ? parts[1] : null;
+        if (version == null) {
+            return LibraryResolutionProvider.selectFromList(versions.values(), null, this.getVersion);
+        }
+
+        LibraryType library = versions.get(version);
+        if (library != null) {
+            return library;
+        }
+
+        LibraryType best = null;
+        for (LibraryType candidate : versions.values()) {
+            String candidateVersion = this.getVersion.apply(candidate);
+            if (matchesVersion(version, candidateVersion)
+                    && (best == null || compareVersions(this.getVersion.apply(best), candidateVersion) < 0)) {
+                best = candidate;
+            }
+        }
+
+        return best;
     }
 
     @Override
-    public LibraryType resolveLibraryByCanonicalUrl(String libraryUrl) {
-        // TODO Auto-generated method stub
-        return null;
+    public synchronized void update(LibraryType library) {
+        // Libraries without an id, such as those in a request bundle, are only resolvable by name and url
+        String id = this.getId.apply(library);
+        LibraryType previous = id != null ? this.libraries.put(id, library) : null;
+        if (previous != null) {
+            remove(this.librariesByName, this.getName.apply(previous), this.getVersion.apply(previous), previous);
+            if (this.getUrl != null) {
+                remove(this.librariesByUrl, this.getUrl.apply(previous), this.getVersion.apply(previous), previous);
+            }
+        }
+
+        add(this.librariesByName, this.getName.apply(library), this.getVersion.apply(library), library);
+        if (this.getUrl != null) {
+            add(this.librariesByUrl, this.getUrl.apply(library), this.getVersion.apply(library), library);
+        }
+    }
+
+    private static <LibraryType> void add(ConcurrentMap<String, ConcurrentMap<String, LibraryType>> index,
+            String key, String version, LibraryType library) {
+        if (key != null) {
+            index.computeIfAbsent(key, x -> new ConcurrentHashMap<>()).put(version != null ? version : NO_VERSION,
+                    library);
+        }
     }
 
-}
\ No newline at end of file
+    private static <LibraryType> void remove(ConcurrentMap<String, ConcurrentMap<String, LibraryType>> index,
+            String key, String version, LibraryType library) {
+        if (key != null) {
+            Map<String, LibraryType> versions = index.get(key);
+            if (versions != null) {
+                versions.remove(version != null ? version : NO_VERSION, library);
+            }
+        }
+    }
+
+    // Each component of the pattern must equal the version's, unless it is a
+    // wildcard. Components missing from the pattern match anything.
+    private static boolean matchesVersion(String pattern, String version) {
+        if (version == null) {
+            return false;
+        }
+
+        String[] patternParts = pattern.split("\\.");
+        String[] versionParts = version.split("\\.");
+        if (patternParts.length > versionParts.length) {
+            return false;
+        }
+
+        for (int i = 0; i < patternParts.length; i++) {
+            String part = patternParts[i];
+            if (!part.equals("x") && !part.equals("X") && !part.equals("*") && !part.equals(versionParts[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int compareVersions(String version1, String version2) {
+        try {
+            return LibraryResolutionProvider.compareVersions(version1, version2);
+        } catch (NumberFormatException e) {
+            return version1.compareTo(version2);
+        }
+    }
+}
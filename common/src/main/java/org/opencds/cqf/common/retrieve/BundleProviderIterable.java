@@ -0,0 +1,129 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * The results of a search, read from the IBundleProvider a page at a time as
+ * they are iterated.
+ *
+ * Nothing is loaded until the first element is requested, or the first page
+ * is prefetched, and an iteration that stops early (e.g. for exists) never
+ * loads the remaining pages. Each iterator reads the pages again; JPA searches
+ * keep their results, so this does not repeat the search.
+ */
+public class BundleProviderIterable implements Iterable<Object> {
+
+    /**
+     * Notified of each page loaded, with its size and the time taken to load it.
+     */
+    public interface PageListener {
+        void page(int rows, long nanos);
+    }
+
+    private final IBundleProvider bundleProvider;
+    private final int pageSize;
+    private final PageListener listener;
+
+    private volatile List<IBaseResource> firstPage;
+
+    public BundleProviderIterable(IBundleProvider bundleProvider, int pageSize) {
+        this(bundleProvider, pageSize, null);
+    }
+
+    public BundleProviderIterable(IBundleProvider bundleProvider, int pageSize, PageListener listener) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+
+        this.bundleProvider = bundleProvider;
+        this.pageSize = pageSize;
+        this.listener = listener;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new PageIterator();
+    }
+
+    /**
+     * Loads the first page now, e.g. on another thread while other queries run,
+     * for the iterators to start from.
+     */
+    public BundleProviderIterable prefetch() {
+        if (this.firstPage == null) {
+            Integer size = this.bundleProvider.size();
+            this.firstPage = this.load(0, size != null ? Math.min(this.pageSize, size) : this.pageSize);
+        }
+
+        return this;
+    }
+
+    private List<IBaseResource> load(int from, int to) {
+        long start = System.nanoTime();
+        List<IBaseResource> resources = this.bundleProvider.getResources(from, to);
+        if (this.listener != null) {
+            this.listener.page(resources != null ? resources.size() : 0, System.nanoTime() - start);
+        }
+
+        return resources != null ? resources : Collections.emptyList();
+    }
+
+    private class PageIterator implements Iterator<Object> {
+        private int offset;
+        private List<IBaseResource> page = Collections.emptyList();
+        private int index;
+        private boolean done;
+
+        @Override
+        public boolean hasNext() {
+            while (!this.done && this.index >= this.page.size()) {
+                this.nextPage();
+            }
+
+            return !this.done;
+        }
+
+        @Override
+        public Object next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return this.page.get(this.index++);
+        }
+
+        private void nextPage() {
+            // The size is null until an asynchronous search completes
+            Integer size = bundleProvider.size();
+            int to = this.offset + pageSize;
+            if (size != null) {
+                to = Math.min(to, size);
+            }
+
+            if (this.offset >= to) {
+                this.done = true;
+                return;
+            }
+
+            // A page may hold fewer resources than requested, or none, if some were
+            // deleted; only an unsized search signals its end with an empty page
+            List<IBaseResource> resources = this.offset == 0 && firstPage != null ? firstPage
+                    : load(this.offset, to);
+            if (resources.isEmpty() && size == null) {
+                this.done = true;
+                return;
+            }
+
+            this.page = resources;
+            this.index = 0;
+            this.offset = to;
+        }
+    }
+}
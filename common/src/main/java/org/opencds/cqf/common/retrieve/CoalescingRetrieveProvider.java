@@ -0,0 +1,177 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.hl7.fhir.instance.model.api.ICompositeType;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+/**
+ * Answers the value set retrieves of a patient that share a data type with one
+ * retrieve for the union of their codes, as planned by RetrieveCoalescingPlan.
+ *
+ * The combined results are kept for the current patient and split per value set
+ * in memory, by the codings at the retrieve's code path. Retrieves outside the
+ * plan, with a date range, or whose resources' codes cannot be read are passed
+ * to the wrapped provider unchanged.
+ */
+public class CoalescingRetrieveProvider implements RetrieveProvider {
+
+    private final RetrieveProvider retrieveProvider;
+    private final RetrieveCoalescingPlan plan;
+    private final ModelResolver modelResolver;
+    private final TerminologyProvider terminologyProvider;
+
+    private final Map<String, Set<String>> expansions = new HashMap<>();
+    private final Map<Set<String>, List<Object>> results = new HashMap<>();
+    private Object contextValue;
+
+    public CoalescingRetrieveProvider(RetrieveProvider retrieveProvider, RetrieveCoalescingPlan plan,
+            ModelResolver modelResolver, TerminologyProvider terminologyProvider) {
+        this.retrieveProvider = Objects.requireNonNull(retrieveProvider, "retrieveProvider");
+        this.plan = Objects.requireNonNull(plan, "plan");
+        this.modelResolver = Objects.requireNonNull(modelResolver, "modelResolver");
+        this.terminologyProvider = Objects.requireNonNull(terminologyProvider, "terminologyProvider");
+    }
+
+    @Override
+    public synchronized Iterable<Object> retrieve(String context, String contextPath, Object contextValue,
+            String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet,
+            String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+        Set<String> valueSets = null;
+        if (contextValue != null && codePath != null && valueSet != null && codes == null && dateRange == null) {
+            valueSets = this.plan.getValueSets(dataType, templateId, codePath, valueSet);
+        }
+
+        if (valueSets != null) {
+            List<Object> resources = this.retrieveCoalesced(context, contextPath, contextValue, dataType, templateId,
+                    codePath, valueSet, valueSets);
+            if (resources != null) {
+                return resources;
+            }
+        }
+
+        return this.retrieveProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath,
+                codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+    }
+
+    private List<Object> retrieveCoalesced(String context, String contextPath, Object contextValue,
+            String dataType, String templateId, String codePath, String valueSet, Set<String> valueSets) {
+        if (!Objects.equals(this.contextValue, contextValue)) {
+            this.results.clear();
+            this.contextValue = contextValue;
+        }
+
+        List<Object> combined = this.results.get(valueSets);
+        if (combined == null) {
+            List<Code> union = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (String member : valueSets) {
+                for (Code code : this.expand(member)) {
+                    if (seen.add(key(code.getSystem(), code.getCode()))) {
+                        union.add(code);
+                    }
+                }
+            }
+
+            if (union.isEmpty()) {
+                return null;
+            }
+
+            combined = new ArrayList<>();
+            Iterable<Object> retrieved = this.retrieveProvider.retrieve(context, contextPath, contextValue, dataType,
+                    templateId, codePath, union, null, null, null, null, null);
+            if (retrieved != null) {
+                retrieved.forEach(combined::add);
+            }
+            this.results.put(valueSets, combined);
+        }
+
+        Set<String> members = this.getCodes(valueSet);
+        List<Object> resources = new ArrayList<>();
+        for (Object resource : combined) {
+            Set<String> resourceCodes = new HashSet<>();
+            if (!this.addCodes(this.modelResolver.resolvePath(resource, codePath), resourceCodes)) {
+                return null;
+            }
+
+            if (!Collections.disjoint(resourceCodes, members)) {
+                resources.add(resource);
+            }
+        }
+
+        return resources;
+    }
+
+    private List<Code> expand(String valueSet) {
+        List<Code> codes = new ArrayList<>();
+        Iterable<Code> expansion = this.terminologyProvider.expand(new ValueSetInfo().withId(valueSet));
+        if (expansion != null) {
+            expansion.forEach(codes::add);
+        }
+
+        Set<String> keys = new HashSet<>();
+        for (Code code : codes) {
+            keys.add(key(code.getSystem(), code.getCode()));
+        }
+        this.expansions.put(valueSet, keys);
+
+        return codes;
+    }
+
+    private Set<String> getCodes(String valueSet) {
+        Set<String> codes = this.expansions.get(valueSet);
+        if (codes == null) {
+            this.expand(valueSet);
+            codes = this.expansions.get(valueSet);
+        }
+
+        return codes;
+    }
+
+    // False if the value is not made of codings
+    private boolean addCodes(Object value, Set<String> codes) {
+        if (value == null) {
+            return true;
+        }
+
+        if (value instanceof Iterable) {
+            for (Object item : (Iterable<?>) value) {
+                if (!this.addCodes(item, codes)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        if (value instanceof IBaseCoding) {
+            IBaseCoding coding = (IBaseCoding) value;
+            codes.add(key(coding.getSystem(), coding.getCode()));
+            return true;
+        }
+
+        // A CodeableConcept
+        if (value instanceof ICompositeType) {
+            Object codings = this.modelResolver.resolvePath(value, "coding");
+            return codings != null && this.addCodes(codings, codes);
+        }
+
+        return false;
+    }
+
+    private static String key(String system, String code) {
+        return system + "|" + code;
+    }
+}
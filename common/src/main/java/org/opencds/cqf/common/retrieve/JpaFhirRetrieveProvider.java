@@ -1,96 +1,299 @@
 package org.opencds.cqf.common.retrieve;
 
-import java.lang.reflect.Method;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+
+import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.ParallelLibraryLoader;
 import org.opencds.cqf.cql.engine.fhir.retrieve.SearchParamFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Date;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Precision;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import ca.uhn.fhir.context.RuntimeSearchParam;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
 
 @Component
 public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(JpaFhirRetrieveProvider.class);
 
+    private static class QueryExecutor {
+        private static final ExecutorService instance = Executors.newFixedThreadPool(
+                Math.max(1, HapiProperties.getCqlRetrieveThreads()),
+                new ParallelLibraryLoader.DaemonThreadFactory("retrieve"));
+    }
+
     DaoRegistry registry;
+    SearchParameterResolver searchParameterResolver;
 
     @Inject
     public JpaFhirRetrieveProvider(DaoRegistry registry, SearchParameterResolver searchParameterResolver) {
         super(searchParameterResolver);
         this.registry = registry;
+        this.searchParameterResolver = searchParameterResolver;
+    }
+
+    /**
+     * Searches with the date range of the retrieve when its date path maps to a
+     * date search parameter, keeping the open or closed bounds and the precision
+     * of the range. Other date filters are left to the engine.
+     */
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        Pair<String, List<DateParam>> dateParam = this.getDateParam(dataType, datePath, dateLowPath, dateHighPath,
+                dateRange);
+        if (dateParam == null) {
+            return super.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                    valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        }
+
+        // The queries are built without the date range, which is searched here
+        List<SearchParameterMap> queries = this.setupQueries(context, contextPath, contextValue, dataType,
+                templateId, codePath, codes, valueSet, null, null, null, null);
+        return this.executeQueries(dataType, queries, dateParam);
+    }
+
+    private Pair<String, List<DateParam>> getDateParam(String dataType, String datePath, String dateLowPath,
+            String dateHighPath, Interval dateRange) {
+        if (dateRange == null || datePath == null || dateLowPath != null || dateHighPath != null) {
+            return null;
+        }
+
+        RuntimeSearchParam searchParam = this.searchParameterResolver.getSearchParameterDefinition(dataType,
+                datePath, RestSearchParameterTypeEnum.DATE);
+        if (searchParam == null) {
+            logger.debug("No date search parameter for {}.{}, not searching by date", dataType, datePath);
+            return null;
+        }
+
+        String low = toSearchValue(dateRange.getLow());
+        String high = toSearchValue(dateRange.getHigh());
+        if ((dateRange.getLow() != null && low == null) || (dateRange.getHigh() != null && high == null)) {
+            return null;
+        }
+
+        List<DateParam> bounds = new ArrayList<>();
+        if (low != null) {
+            bounds.add(new DateParam(
+                    dateRange.getLowClosed() ? ParamPrefixEnum.GREATERTHAN_OR_EQUALS : ParamPrefixEnum.GREATERTHAN,
+                    low));
+        }
+        if (high != null) {
+            bounds.add(new DateParam(
+                    dateRange.getHighClosed() ? ParamPrefixEnum.LESSTHAN_OR_EQUALS : ParamPrefixEnum.LESSTHAN,
+                    high));
+        }
+
+        return bounds.isEmpty() ? null : Pair.of(searchParam.getName(), bounds);
+    }
+
+    // The text of a Date or DateTime at its own precision, so that e.g. a Date
+    // bound of 2019-12-31 covers the whole day. Null for precisions a FHIR date
+    // search cannot express.
+    private static String toSearchValue(Object value) {
+        if (value instanceof DateTime) {
+            DateTime dateTime = (DateTime) value;
+            return format(dateTime.getDateTime(), dateTime.getPrecision());
+        }
+
+        if (value instanceof Date) {
+            Date date = (Date) value;
+            return format(date.getDate(), date.getPrecision());
+        }
+
+        return null;
+    }
+
+    private static String format(TemporalAccessor value, Precision precision) {
+        String pattern;
+        switch (precision) {
+            case YEAR:
+                pattern = "yyyy";
+                break;
+            case MONTH:
+                pattern = "yyyy-MM";
+                break;
+            case DAY:
+                pattern = "yyyy-MM-dd";
+                break;
+            case MINUTE:
+                pattern = "yyyy-MM-dd'T'HH:mmXXX";
+                break;
+            case SECOND:
+                pattern = "yyyy-MM-dd'T'HH:mm:ssXXX";
+                break;
+            case MILLISECOND:
+                pattern = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
+                break;
+            default:
+                return null;
+        }
+
+        return DateTimeFormatter.ofPattern(pattern).format(value);
     }
 
     @Override
     protected Iterable<Object> executeQueries(String dataType, List<SearchParameterMap> queries) {
+        return this.executeQueries(dataType, queries, null);
+    }
+
+    protected Iterable<Object> executeQueries(String dataType, List<SearchParameterMap> queries,
+            Pair<String, List<DateParam>> dateParam) {
         if (queries == null || queries.isEmpty()) {
             return Collections.emptyList();
         }
 
-        List<Object> objects = new ArrayList<>();
-        for (SearchParameterMap map : queries) {
-            objects.addAll(executeQuery(dataType, map));
+        RetrieveMetrics.Recorder recorder = RetrieveMetrics.startRetrieve(dataType);
+        if (queries.size() == 1) {
+            return executeQuery(dataType, queries.get(0), dateParam, recorder);
+        }
+
+        // A value set split across several queries: the queries, and the loading of
+        // their first pages, run concurrently, the first on this thread, and
+        // resources matched by more than one are returned once
+        List<CompletableFuture<Iterable<Object>>> tasks = new ArrayList<>();
+        for (SearchParameterMap map : queries.subList(1, queries.size())) {
+            tasks.add(CompletableFuture.supplyAsync(
+                    () -> prefetch(executeQuery(dataType, map, dateParam, recorder)), QueryExecutor.instance));
+        }
+
+        List<Iterable<Object>> results = new ArrayList<>();
+        results.add(prefetch(executeQuery(dataType, queries.get(0), dateParam, recorder)));
+        for (CompletableFuture<Iterable<Object>> task : tasks) {
+            try {
+                results.add(task.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
         }
 
-        return objects;
+        return () -> {
+            Set<String> ids = new HashSet<>();
+            return Iterators.filter(Iterables.concat(results).iterator(), x -> isFirst(x, ids));
+        };
     }
 
-    protected Collection<Object> executeQuery(String dataType, SearchParameterMap map) {
-        // TODO: Once HAPI breaks this out from the server dependencies
-        // we can include it on its own.
+    protected Iterable<Object> executeQuery(String dataType, SearchParameterMap map,
+            Pair<String, List<DateParam>> dateParam, RetrieveMetrics.Recorder recorder) {
+        ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = toHapiMap(map);
+        if (dateParam != null) {
+            for (DateParam bound : dateParam.getValue()) {
+                hapiMap.add(dateParam.getKey(), bound);
+            }
+        }
+
+        IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
+
+        long start = System.nanoTime();
+        IBundleProvider bundleProvider = dao.search(hapiMap);
+        long searchNanos = System.nanoTime() - start;
+        recorder.search(searchNanos);
+        logIfSlow("search", dataType, hapiMap, searchNanos);
+
+        Integer size = bundleProvider.size();
+        if (size != null && size == 0) {
+            return Collections.emptyList();
+        }
+
+        return new BundleProviderIterable(bundleProvider, HapiProperties.getCqlRetrievePageSize(), (rows, nanos) -> {
+            recorder.page(rows, nanos);
+            logIfSlow("page load", dataType, hapiMap, nanos);
+        });
+    }
+
+    // Both maps hold, per parameter, a list of AND groups of OR'd values. Anything
+    // that cannot be converted fails the retrieve rather than dropping a filter.
+    private static ca.uhn.fhir.jpa.searchparam.SearchParameterMap toHapiMap(SearchParameterMap map) {
         ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = new ca.uhn.fhir.jpa.searchparam.SearchParameterMap();
-        try {
+        if (map == null) {
+            return hapiMap;
+        }
 
-            Method[] methods = hapiMap.getClass().getDeclaredMethods();
-            List<Method> methodList = Arrays.asList(methods);
-            List<Method> puts = methodList.stream().filter(x -> x.getName().equals("put")).collect(Collectors.toList());
-            Method method = puts.get(0);
-            method.setAccessible(true);
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            String name = entry.getKey();
+            if (name == null || entry.getValue() == null) {
+                throw new IllegalArgumentException(
+                        String.format("Unable to convert search parameter %s with no name or values", name));
+            }
 
-            for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
-                method.invoke(hapiMap, entry.getKey(), entry.getValue());
+            for (List<IQueryParameterType> or : entry.getValue()) {
+                if (or == null || or.isEmpty() || or.contains(null)) {
+                    throw new IllegalArgumentException(
+                            String.format("Unable to convert search parameter %s with an empty value", name));
+                }
             }
 
-        } catch (Exception e) {
-            logger.warn("Error converting search parameter map", e);
+            hapiMap.put(name, entry.getValue());
         }
 
-        IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
+        return hapiMap;
+    }
 
-        IBundleProvider bundleProvider = dao.search(hapiMap);
-        if (bundleProvider.size() == null) {
-            return resolveResourceList(bundleProvider.getResources(0, 10000));
+    private static void logIfSlow(String phase, String dataType,
+            ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap, long nanos) {
+        long threshold = HapiProperties.getCqlRetrieveSlowThreshold();
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (threshold > 0 && millis >= threshold) {
+            logger.warn("Slow retrieve {} for {} took {} ms: {}", phase, dataType, millis, hapiMap);
         }
-        if (bundleProvider.size() == 0) {
-            return new ArrayList<>();
+    }
+
+    private static Iterable<Object> prefetch(Iterable<Object> results) {
+        if (results instanceof BundleProviderIterable) {
+            ((BundleProviderIterable) results).prefetch();
         }
-        List<IBaseResource> resourceList = bundleProvider.getResources(0, bundleProvider.size());
-        return resolveResourceList(resourceList);
+
+        return results;
     }
 
-    public synchronized Collection<Object> resolveResourceList(List<IBaseResource> resourceList) {
-        List<Object> ret = new ArrayList<>();
-        for (IBaseResource res : resourceList) {
-            Class<?> clazz = res.getClass();
-            ret.add(clazz.cast(res));
+    private static boolean isFirst(Object resource, Set<String> ids) {
+        if (!(resource instanceof IBaseResource)) {
+            return true;
         }
-        // ret.addAll(resourceList);
-        return ret;
+
+        IIdType id = ((IBaseResource) resource).getIdElement();
+        if (id == null || id.getIdPart() == null) {
+            return true;
+        }
+
+        return ids.add(id.getIdPart());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,147 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+/**
+ * Wraps a RetrieveProvider for the duration of one evaluation, returning the
+ * results of a repeated retrieve from memory.
+ *
+ * Retrieves are keyed by all of their arguments, with codes compared as a set.
+ * The cache is scoped to one patient: a retrieve for another context value
+ * clears it, so evaluating a population holds the data of a single patient at a
+ * time. Results are read lazily, as far as any iteration of them has gone, and
+ * replayed from memory by later iterations and hits. Hits are counted in the
+ * RetrieveMetrics of their data type.
+ */
+public class MemoizingRetrieveProvider implements RetrieveProvider {
+
+    private final RetrieveProvider retrieveProvider;
+    private final Map<List<String>, Iterable<Object>> results = new ConcurrentHashMap<>();
+    private volatile Object contextValue;
+
+    public MemoizingRetrieveProvider(RetrieveProvider retrieveProvider) {
+        this.retrieveProvider = Objects.requireNonNull(retrieveProvider, "retrieveProvider");
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        if (!Objects.equals(this.contextValue, contextValue)) {
+            this.results.clear();
+            this.contextValue = contextValue;
+        }
+
+        List<Code> codeList = null;
+        if (codes != null) {
+            codeList = new ArrayList<>();
+            codes.forEach(codeList::add);
+        }
+
+        List<String> key = key(context, contextPath, contextValue, dataType, templateId, codePath, codeList,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        Iterable<Object> cached = this.results.get(key);
+        if (cached != null) {
+            RetrieveMetrics.memoized(dataType);
+            return cached;
+        }
+
+        Iterable<Object> retrieved = this.retrieveProvider.retrieve(context, contextPath, contextValue, dataType,
+                templateId, codePath, codeList, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        Iterable<Object> result = retrieved != null ? new ReplayingIterable(retrieved) : Collections.emptyList();
+        this.results.put(key, result);
+        return result;
+    }
+
+    public void clear() {
+        this.results.clear();
+    }
+
+    // Reads the retrieved results once, only as far as the furthest iteration, and
+    // replays what was read to every iterator
+    private static class ReplayingIterable implements Iterable<Object> {
+        private final Iterable<Object> source;
+        private final List<Object> read = new ArrayList<>();
+        private Iterator<Object> sourceIterator;
+        private boolean done;
+
+        ReplayingIterable(Iterable<Object> source) {
+            this.source = source;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new Iterator<Object>() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return has(this.index);
+                }
+
+                @Override
+                public Object next() {
+                    if (!this.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    return get(this.index++);
+                }
+            };
+        }
+
+        private synchronized boolean has(int index) {
+            while (index >= this.read.size() && !this.done) {
+                if (this.sourceIterator == null) {
+                    this.sourceIterator = this.source.iterator();
+                }
+
+                if (this.sourceIterator.hasNext()) {
+                    this.read.add(this.sourceIterator.next());
+                } else {
+                    this.done = true;
+                    this.sourceIterator = null;
+                }
+            }
+
+            return index < this.read.size();
+        }
+
+        private synchronized Object get(int index) {
+            return this.read.get(index);
+        }
+    }
+
+    private static List<String> key(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, List<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        String codeKey = null;
+        if (codes != null) {
+            List<String> codeKeys = new ArrayList<>();
+            for (Code code : codes) {
+                codeKeys.add(code == null ? null
+                        : String.join("|", String.valueOf(code.getSystem()), String.valueOf(code.getVersion()),
+                                String.valueOf(code.getCode())));
+            }
+            codeKeys.sort(Comparator.nullsFirst(Comparator.naturalOrder()));
+            codeKey = codeKeys.toString();
+        }
+
+        return Arrays.asList(context, contextPath, Objects.toString(contextValue, null), dataType, templateId,
+                codePath, codeKey, valueSet, datePath, dateLowPath, dateHighPath,
+                Objects.toString(dateRange, null));
+    }
+}
@@ -0,0 +1,204 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.cqframework.cql.elm.execution.Element;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.ValueSetRef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+
+/**
+ * The retrieves of a library and its includes that can share one query per
+ * patient.
+ *
+ * Retrieves filtered by a value set are grouped by data type, template and
+ * code path. A group with more than one value set, e.g. [Condition: "A"] and
+ * [Condition: "B"], can be answered by a single retrieve for the union of
+ * their codes. Plans are built once per compiled library.
+ */
+public class RetrieveCoalescingPlan {
+
+    private static final Cache<Library, RetrieveCoalescingPlan> plans = CacheBuilder.newBuilder().weakKeys()
+            .maximumSize(500).build();
+
+    // The element-valued getters of each ELM class, walked to find retrieves
+    private static final Map<Class<?>, List<Method>> children = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<String>> groups;
+
+    private RetrieveCoalescingPlan(Map<String, Set<String>> groups) {
+        this.groups = groups;
+    }
+
+    public static RetrieveCoalescingPlan create(Library library, LibraryLoader libraryLoader) {
+        try {
+            return plans.get(library, () -> build(library, libraryLoader));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the value sets of the group the retrieve belongs to, or null if it
+     * does not share its query with any other retrieve.
+     */
+    public Set<String> getValueSets(String dataType, String templateId, String codePath, String valueSet) {
+        Set<String> valueSets = this.groups.get(key(dataType, templateId, codePath));
+        return valueSets != null && valueSets.contains(valueSet) ? valueSets : null;
+    }
+
+    public boolean isEmpty() {
+        return this.groups.isEmpty();
+    }
+
+    private static RetrieveCoalescingPlan build(Library library, LibraryLoader libraryLoader) {
+        Map<String, Set<String>> groups = new HashMap<>();
+        addRetrieves(library, libraryLoader, groups, new IdentityHashMap<>());
+
+        groups.values().removeIf(x -> x.size() < 2);
+        for (Map.Entry<String, Set<String>> entry : groups.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+
+        return new RetrieveCoalescingPlan(groups);
+    }
+
+    private static void addRetrieves(Library library, LibraryLoader libraryLoader, Map<String, Set<String>> groups,
+            Map<Library, Boolean> visited) {
+        if (library == null || visited.put(library, true) != null) {
+            return;
+        }
+
+        if (library.getStatements() != null) {
+            List<Retrieve> retrieves = new ArrayList<>();
+            Map<Object, Boolean> walked = new IdentityHashMap<>();
+            for (ExpressionDef def : library.getStatements().getDef()) {
+                walk(def, retrieves, walked);
+            }
+
+            for (Retrieve retrieve : retrieves) {
+                if (retrieve.getDataType() == null || retrieve.getDateRange() != null
+                        || !(retrieve.getCodes() instanceof ValueSetRef)) {
+                    continue;
+                }
+
+                String valueSet = resolveValueSet(library, (ValueSetRef) retrieve.getCodes(), libraryLoader);
+                if (valueSet == null) {
+                    continue;
+                }
+
+                groups.computeIfAbsent(
+                        key(retrieve.getDataType().getLocalPart(), retrieve.getTemplateId(),
+                                retrieve.getCodeProperty()),
+                        x -> new LinkedHashSet<>()).add(valueSet);
+            }
+        }
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                addRetrieves(load(include, libraryLoader), libraryLoader, groups, visited);
+            }
+        }
+    }
+
+    private static String resolveValueSet(Library library, ValueSetRef ref, LibraryLoader libraryLoader) {
+        Library source = library;
+        if (ref.getLibraryName() != null) {
+            source = null;
+            if (library.getIncludes() != null) {
+                for (IncludeDef include : library.getIncludes().getDef()) {
+                    if (ref.getLibraryName().equals(include.getLocalIdentifier())) {
+                        source = load(include, libraryLoader);
+                    }
+                }
+            }
+        }
+
+        if (source == null || source.getValueSets() == null) {
+            return null;
+        }
+
+        for (ValueSetDef def : source.getValueSets().getDef()) {
+            if (def.getName().equals(ref.getName())) {
+                return def.getId();
+            }
+        }
+
+        return null;
+    }
+
+    private static Library load(IncludeDef include, LibraryLoader libraryLoader) {
+        return libraryLoader.load(new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion()));
+    }
+
+    private static void walk(Object node, List<Retrieve> retrieves, Map<Object, Boolean> walked) {
+        if (node == null || walked.put(node, true) != null) {
+            return;
+        }
+
+        if (node instanceof Retrieve) {
+            retrieves.add((Retrieve) node);
+        }
+
+        if (node instanceof Iterable) {
+            for (Object child : (Iterable<?>) node) {
+                walk(child, retrieves, walked);
+            }
+            return;
+        }
+
+        if (!(node instanceof Element)) {
+            return;
+        }
+
+        for (Method getter : children.computeIfAbsent(node.getClass(), RetrieveCoalescingPlan::getChildren)) {
+            try {
+                walk(getter.invoke(node), retrieves, walked);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static List<Method> getChildren(Class<?> type) {
+        List<Method> getters = new ArrayList<>();
+        for (Method method : type.getMethods()) {
+            if (method.getName().startsWith("get") && method.getParameterCount() == 0
+                    && !Modifier.isStatic(method.getModifiers())
+                    && (Element.class.isAssignableFrom(method.getReturnType())
+                            || List.class.isAssignableFrom(method.getReturnType()))) {
+                getters.add(method);
+            }
+        }
+
+        return getters;
+    }
+
+    private static String key(String dataType, String templateId, String codePath) {
+        return String.format("%s|%s|%s", dataType, templateId, codePath);
+    }
+}
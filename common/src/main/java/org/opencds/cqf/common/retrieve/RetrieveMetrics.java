@@ -0,0 +1,138 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and times JPA retrieves per resource type: retrieves, the queries
+ * they were split into, rows returned, and the time spent in DAO searches and
+ * in loading result pages, along with the retrieves answered from memory by a
+ * MemoizingRetrieveProvider.
+ *
+ * Metrics are kept for the life of the server, and optionally for a single
+ * request, from startRequest to endRequest on the thread handling it.
+ */
+public class RetrieveMetrics {
+
+    public static final String SUMMARY_EXTENSION_URL = "http://cqframework.org/fhir/StructureDefinition/retrieve-summary";
+
+    public static class TypeMetrics {
+        private final AtomicLong retrieves = new AtomicLong();
+        private final AtomicLong queries = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong searchNanos = new AtomicLong();
+        private final AtomicLong loadNanos = new AtomicLong();
+        private final AtomicLong memoized = new AtomicLong();
+
+        public long getRetrieves() {
+            return this.retrieves.get();
+        }
+
+        public long getQueries() {
+            return this.queries.get();
+        }
+
+        public long getRows() {
+            return this.rows.get();
+        }
+
+        public long getSearchMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(this.searchNanos.get());
+        }
+
+        public long getLoadMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(this.loadNanos.get());
+        }
+
+        public long getMemoized() {
+            return this.memoized.get();
+        }
+    }
+
+    /**
+     * Records one retrieve into the server metrics and those of the request that
+     * started it, from whichever thread runs its queries.
+     */
+    public static class Recorder {
+        private final TypeMetrics[] targets;
+
+        private Recorder(TypeMetrics... targets) {
+            this.targets = targets;
+            for (TypeMetrics target : targets) {
+                target.retrieves.incrementAndGet();
+            }
+        }
+
+        public void search(long nanos) {
+            for (TypeMetrics target : this.targets) {
+                target.queries.incrementAndGet();
+                target.searchNanos.addAndGet(nanos);
+            }
+        }
+
+        public void page(int rows, long nanos) {
+            for (TypeMetrics target : this.targets) {
+                target.rows.addAndGet(rows);
+                target.loadNanos.addAndGet(nanos);
+            }
+        }
+    }
+
+    private static final RetrieveMetrics server = new RetrieveMetrics();
+    private static final ThreadLocal<RetrieveMetrics> request = new ThreadLocal<>();
+
+    private final ConcurrentMap<String, TypeMetrics> types = new ConcurrentHashMap<>();
+
+    public static RetrieveMetrics getServerMetrics() {
+        return server;
+    }
+
+    /**
+     * Starts collecting the metrics of retrieves started on this thread, until
+     * endRequest.
+     */
+    public static RetrieveMetrics startRequest() {
+        RetrieveMetrics metrics = new RetrieveMetrics();
+        request.set(metrics);
+        return metrics;
+    }
+
+    public static void endRequest() {
+        request.remove();
+    }
+
+    public static Recorder startRetrieve(String dataType) {
+        RetrieveMetrics requestMetrics = request.get();
+        if (requestMetrics == null) {
+            return new Recorder(server.getTypeMetrics(dataType));
+        }
+
+        return new Recorder(server.getTypeMetrics(dataType), requestMetrics.getTypeMetrics(dataType));
+    }
+
+    /**
+     * Counts a retrieve answered from memory rather than by a query.
+     */
+    public static void memoized(String dataType) {
+        server.getTypeMetrics(dataType).memoized.incrementAndGet();
+        RetrieveMetrics requestMetrics = request.get();
+        if (requestMetrics != null) {
+            requestMetrics.getTypeMetrics(dataType).memoized.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the metrics of each resource type retrieved, by type name.
+     */
+    public Map<String, TypeMetrics> getTypes() {
+        return new TreeMap<>(this.types);
+    }
+
+    private TypeMetrics getTypeMetrics(String dataType) {
+        return this.types.computeIfAbsent(dataType, x -> new TypeMetrics());
+    }
+}
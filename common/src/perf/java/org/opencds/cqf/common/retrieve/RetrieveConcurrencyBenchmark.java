@@ -0,0 +1,155 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+/**
+ * Measures the throughput of concurrent retrieves through one shared
+ * JpaFhirRetrieveProvider, as CdsHooksServlet shares it between requests.
+ *
+ * The DAO is a stub that takes a fixed time per search and per page, as a
+ * database would, so the results show what the provider itself adds. With no
+ * lock on the retrieve path, throughput grows with the number of threads.
+ *
+ * Run with:
+ *
+ * <pre>
+ * mvn -P perf -pl common test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.opencds.cqf.common.retrieve.RetrieveConcurrencyBenchmark
+ * </pre>
+ */
+public class RetrieveConcurrencyBenchmark {
+
+    private static final int MAX_THREADS = 16;
+    private static final int RETRIEVES_PER_THREAD = 200;
+    private static final int RESOURCES_PER_RETRIEVE = 50;
+    private static final long SEARCH_MILLIS = 2;
+    private static final long PAGE_MILLIS = 1;
+
+    public static void main(String[] args) throws Exception {
+        FhirContext fhirContext = FhirContext.forR4();
+        JpaFhirRetrieveProvider provider = new JpaFhirRetrieveProvider(new StubDaoRegistry(fhirContext),
+                new SearchParameterResolver(fhirContext));
+
+        // Warm up
+        run(provider, MAX_THREADS);
+
+        double single = 0;
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            double throughput = run(provider, threads);
+            if (threads == 1) {
+                single = throughput;
+            }
+            System.out.println(String.format("%2d threads: %8.0f retrieves/s, %5.1fx one thread", threads,
+                    throughput, throughput / single));
+        }
+    }
+
+    // Retrieves per second with the given number of threads retrieving at once
+    private static double run(JpaFhirRetrieveProvider provider, int threads) throws Exception {
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            tasks.add(() -> {
+                int count = 0;
+                for (int j = 0; j < RETRIEVES_PER_THREAD; j++) {
+                    for (Object resource : provider.retrieve("Patient", "subject", thread + "-" + j, "Observation",
+                            null, null, null, null, null, null, null, null)) {
+                        if (resource != null) {
+                            count++;
+                        }
+                    }
+                }
+                return count;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            for (Future<Integer> task : executor.invokeAll(tasks)) {
+                if (task.get() != RETRIEVES_PER_THREAD * RESOURCES_PER_RETRIEVE) {
+                    throw new IllegalStateException("Retrieves returned the wrong number of resources");
+                }
+            }
+            long nanos = System.nanoTime() - start;
+
+            return threads * RETRIEVES_PER_THREAD / (nanos / 1e9);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Answers every search with the same Observations, after a delay
+    private static class StubDaoRegistry extends DaoRegistry {
+        private final IFhirResourceDao<?> dao;
+
+        StubDaoRegistry(FhirContext fhirContext) {
+            super(fhirContext);
+
+            List<IBaseResource> resources = new ArrayList<>();
+            for (int i = 0; i < RESOURCES_PER_RETRIEVE; i++) {
+                resources.add(new Observation().setId("Observation/" + i));
+            }
+            List<IBaseResource> results = Collections.unmodifiableList(resources);
+
+            this.dao = (IFhirResourceDao<?>) Proxy.newProxyInstance(IFhirResourceDao.class.getClassLoader(),
+                    new Class<?>[] { IFhirResourceDao.class }, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "search":
+                                sleep(SEARCH_MILLIS);
+                                return new SlowBundleProvider(results);
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            case "toString":
+                                return "StubDao";
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends IBaseResource> IFhirResourceDao<T> getResourceDao(String theResourceName) {
+            return (IFhirResourceDao<T>) this.dao;
+        }
+    }
+
+    private static class SlowBundleProvider extends SimpleBundleProvider {
+        SlowBundleProvider(List<IBaseResource> resources) {
+            super(resources);
+        }
+
+        @Override
+        public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+            sleep(PAGE_MILLIS);
+            return super.getResources(theFromIndex, theToIndex);
+        }
+    }
+}
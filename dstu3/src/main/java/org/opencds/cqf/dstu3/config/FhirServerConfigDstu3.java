@@ -7,6 +7,9 @@ import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
 
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.ExpressionLibraryCache;
+import org.opencds.cqf.common.evaluation.LibraryElmCache;
+import org.opencds.cqf.common.evaluation.ResourceReadCache;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.dstu3.providers.ActivityDefinitionApplyProvider;
 import org.opencds.cqf.dstu3.providers.ApplyCqlOperationProvider;
@@ -15,10 +18,15 @@ import org.opencds.cqf.dstu3.providers.CodeSystemUpdateProvider;
 import org.opencds.cqf.dstu3.providers.CqlExecutionProvider;
 import org.opencds.cqf.dstu3.providers.LibraryOperationsProvider;
 import org.opencds.cqf.dstu3.providers.MeasureOperationsProvider;
+import org.opencds.cqf.dstu3.providers.MetricsProvider;
 import org.opencds.cqf.dstu3.providers.ObservationProvider;
 import org.opencds.cqf.dstu3.providers.PlanDefinitionApplyProvider;
 import org.opencds.cqf.dstu3.providers.QuestionnaireProvider;
+import org.opencds.cqf.dstu3.providers.ReadinessProvider;
+import org.opencds.cqf.dstu3.providers.RefreshGeneratedContentProvider;
 import org.opencds.cqf.tooling.library.stu3.NarrativeProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -31,12 +39,16 @@ import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.ParserOptions;
 import ca.uhn.fhir.cql.dstu3.provider.JpaTerminologyProvider;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.config.BaseJavaConfigDstu3;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
 
 @Configuration
 @ComponentScan(basePackages = "org.opencds.cqf.dstu3")
 public class FhirServerConfigDstu3 extends BaseJavaConfigDstu3 {
+
+    private static final Logger logger = LoggerFactory.getLogger(FhirServerConfigDstu3.class);
+
     protected final DataSource myDataSource;
 
     @Autowired
@@ -105,7 +117,10 @@ public class FhirServerConfigDstu3 extends BaseJavaConfigDstu3 {
         classes.add(CqlExecutionProvider.class);
         classes.add(LibraryOperationsProvider.class);
         classes.add(MeasureOperationsProvider.class);
+        classes.add(MetricsProvider.class);
         classes.add(PlanDefinitionApplyProvider.class);
+        classes.add(ReadinessProvider.class);
+        classes.add(RefreshGeneratedContentProvider.class);
 
         // The plugin API will need to a way to determine whether a particular
         // service should be registered
@@ -121,12 +136,46 @@ public class FhirServerConfigDstu3 extends BaseJavaConfigDstu3 {
     }
 
     @Bean() 
-    public NarrativeProvider narrativeProvider() {
-        return new NarrativeProvider();
+    public NarrativeProvider narrativeProvider(FhirContext fhirContext) {
+        NarrativeProvider narrativeProvider = new NarrativeProvider();
+
+        // Loads the template manifest and template engine before the first request
+        try {
+            narrativeProvider.getNarrative(fhirContext, new org.hl7.fhir.dstu3.model.Library());
+        } catch (RuntimeException e) {
+            logger.warn("Unable to preload narrative templates: {}", e.getMessage());
+        }
+
+        return narrativeProvider;
     }
 
     @Bean
     public TerminologyProvider terminologyProvider(ca.uhn.fhir.jpa.term.api.ITermReadSvcDstu3 theTerminologySvc, ca.uhn.fhir.jpa.api.dao.DaoRegistry theDaoRegistry, ca.uhn.fhir.context.support.IValidationSupport theValidationSupport) {
         return new JpaTerminologyProvider(theTerminologySvc, theDaoRegistry, theValidationSupport);
     }
+
+    @Bean
+    public LibraryElmCache libraryElmCache(IInterceptorService theInterceptorService) {
+        LibraryElmCache libraryElmCache = new LibraryElmCache(HapiProperties.getCqlElmCacheSize(),
+                x -> x instanceof org.hl7.fhir.dstu3.model.Library ? ((org.hl7.fhir.dstu3.model.Library) x).getName() : null);
+        theInterceptorService.registerInterceptor(libraryElmCache);
+        return libraryElmCache;
+    }
+
+    @Bean
+    public ExpressionLibraryCache expressionLibraryCache(IInterceptorService theInterceptorService) {
+        ExpressionLibraryCache expressionLibraryCache = new ExpressionLibraryCache(
+                HapiProperties.getCqlExpressionCacheSize(), HapiProperties.getCqlExpressionCacheExpiry(),
+                x -> x instanceof org.hl7.fhir.dstu3.model.Library);
+        theInterceptorService.registerInterceptor(expressionLibraryCache);
+        return expressionLibraryCache;
+    }
+
+    @Bean
+    public ResourceReadCache resourceReadCache(FhirContext fhirContext, IInterceptorService theInterceptorService) {
+        ResourceReadCache resourceReadCache = new ResourceReadCache(fhirContext,
+                HapiProperties.getCqlResourceCacheSize(), HapiProperties.getCqlResourceCacheExpiry());
+        theInterceptorService.registerInterceptor(resourceReadCache);
+        return resourceReadCache;
+    }
 }
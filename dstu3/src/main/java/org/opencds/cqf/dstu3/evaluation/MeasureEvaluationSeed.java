@@ -85,7 +85,7 @@ public class MeasureEvaluationSeed {
 
         for (Triple<String, String, String> def : usingDefs) {
             this.dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(),
-                    terminologyProvider);
+                    terminologyProvider, library, libraryLoader);
             context.registerDataProvider(def.getRight(), dataProvider);
         }
 
@@ -2,15 +2,22 @@ package org.opencds.cqf.dstu3.evaluation;
 
 import javax.inject.Inject;
 
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
 import org.opencds.cqf.common.helpers.ClientHelper;
 import org.opencds.cqf.common.providers.Dstu3ApelonFhirTerminologyProvider;
+import org.opencds.cqf.common.retrieve.CoalescingRetrieveProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.MemoizingRetrieveProvider;
+import org.opencds.cqf.common.retrieve.RetrieveCoalescingPlan;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.cql.engine.fhir.model.Dstu3FhirModelResolver;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.fhir.terminology.Dstu3FhirTerminologyProvider;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.springframework.stereotype.Component;
 
@@ -47,14 +54,33 @@ public class ProviderFactory implements EvaluationProviderFactory {
     }
 
     public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider) {
+        return this.createDataProvider(model, version, terminologyProvider, null, null);
+    }
+
+    public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider,
+            Library library, LibraryLoader libraryLoader) {
         if (model.equals("FHIR") && version.startsWith("3")) {
             Dstu3FhirModelResolver modelResolver = new Dstu3FhirModelResolver();
             JpaFhirRetrieveProvider retrieveProvider = new JpaFhirRetrieveProvider(this.registry,
                     new SearchParameterResolver(this.fhirContext));
             retrieveProvider.setTerminologyProvider(terminologyProvider);
-            retrieveProvider.setExpandValueSets(true);
+            // Only value sets stored on this server can be matched with code:in
+            boolean expandValueSets = terminologyProvider != this.defaultTerminologyProvider
+                    || !HapiProperties.getCqlRetrieveValueSetMode().equals("in");
+            retrieveProvider.setExpandValueSets(expandValueSets);
+
+            // Value set retrieves of the same type share a query per patient, unless
+            // they are matched with code:in
+            RetrieveProvider retriever = retrieveProvider;
+            if (library != null && terminologyProvider != null && expandValueSets) {
+                RetrieveCoalescingPlan plan = RetrieveCoalescingPlan.create(library, libraryLoader);
+                if (!plan.isEmpty()) {
+                    retriever = new CoalescingRetrieveProvider(retrieveProvider, plan, modelResolver,
+                            terminologyProvider);
+                }
+            }
 
-            return new CompositeDataProvider(modelResolver, retrieveProvider);
+            return new CompositeDataProvider(modelResolver, new MemoizingRetrieveProvider(retriever));
         }
 
         throw new IllegalArgumentException(
@@ -4,12 +4,14 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.cqframework.cql.cql2elm.LibraryManager;
-import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.dstu3.model.*;
 import org.hl7.fhir.dstu3.model.RelatedArtifact.RelatedArtifactType;
+import org.opencds.cqf.common.evaluation.CachingLibraryManager;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
+import org.opencds.cqf.common.providers.InMemoryLibraryResourceProvider;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 
@@ -18,26 +20,46 @@ import org.opencds.cqf.common.providers.LibrarySourceProvider;
  */
 public class LibraryHelper {
 
+    /**
+     * Libraries in the watched library directory override stored Libraries, but
+     * not libraries supplied explicitly with a request (e.g. in a bundle).
+     */
     public static LibraryLoader createLibraryLoader(
             LibraryResolutionProvider<org.hl7.fhir.dstu3.model.Library> provider) {
-        ModelManager modelManager = new ModelManager();
-        LibraryManager libraryManager = new LibraryManager(modelManager);
+        return createLibraryLoader(
+                new LibrarySourceProvider<org.hl7.fhir.dstu3.model.Library, org.hl7.fhir.dstu3.model.Attachment>(
+                        provider, x -> x.getContent(), x -> x.getContentType(), x -> x.getData()),
+                provider instanceof InMemoryLibraryResourceProvider);
+    }
+
+    private static LibraryLoader createLibraryLoader(org.cqframework.cql.cql2elm.LibrarySourceProvider provider,
+            boolean supplied) {
+        CompiledLibraryCache cache = CompiledLibraryCache.getInstance();
+        LibraryManager libraryManager = new CachingLibraryManager(cache);
         libraryManager.getLibrarySourceLoader().clearProviders();
+        if (supplied) {
+            libraryManager.getLibrarySourceLoader().registerProvider(provider);
+        }
 
-        libraryManager.getLibrarySourceLoader().registerProvider(
-                new LibrarySourceProvider<org.hl7.fhir.dstu3.model.Library, org.hl7.fhir.dstu3.model.Attachment>(
-                        provider, x -> x.getContent(), x -> x.getContentType(), x -> x.getData()));
+        if (cache.getLibraryDirectory() != null) {
+            libraryManager.getLibrarySourceLoader().registerProvider(cache.getLibraryDirectory());
+        }
+
+        if (!supplied) {
+            libraryManager.getLibrarySourceLoader().registerProvider(provider);
+        }
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, cache.getModelManager());
     }
 
     public static List<org.cqframework.cql.elm.execution.Library> loadLibraries(Measure measure,
             org.opencds.cqf.cql.engine.execution.LibraryLoader libraryLoader,
             LibraryResolutionProvider<org.hl7.fhir.dstu3.model.Library> libraryResourceProvider) {
-        List<org.cqframework.cql.elm.execution.Library> libraries = new ArrayList<org.cqframework.cql.elm.execution.Library>();
+        List<VersionedIdentifier> libraryIdentifiers = new ArrayList<VersionedIdentifier>();
 
         // load libraries
         //TODO: if there's a bad measure argument, this blows up for an obscure error
+        org.hl7.fhir.dstu3.model.Library primaryLibrary = null;
         for (Reference ref : measure.getLibrary()) {
             // if library is contained in measure, load it into server
             if (ref.getReferenceElement().getIdPart().startsWith("#")) {
@@ -57,36 +79,49 @@ public class LibraryHelper {
 
             org.hl7.fhir.dstu3.model.Library library = libraryResourceProvider.resolveLibraryById(id);
             if (library != null && isLogicLibrary(library)) {
-                libraries.add(libraryLoader
-                        .load(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion())));
+                if (primaryLibrary == null) {
+                    primaryLibrary = library;
+                }
+                libraryIdentifiers.add(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()));
             }
         }
 
-        if (libraries.isEmpty()) {
+        if (libraryIdentifiers.isEmpty()) {
             throw new IllegalArgumentException(String
                     .format("Could not load library source for libraries referenced in Measure/%s.", measure.getId()));
         }
 
-        VersionedIdentifier primaryLibraryId = libraries.get(0).getIdentifier();
-        org.hl7.fhir.dstu3.model.Library primaryLibrary = libraryResourceProvider.resolveLibraryByName(primaryLibraryId.getId(), primaryLibraryId.getVersion());
         for (RelatedArtifact artifact : primaryLibrary.getRelatedArtifact()) {
             if (artifact.hasType() && artifact.getType().equals(RelatedArtifactType.DEPENDSON) && artifact.hasResource() && artifact.getResource().hasReference()) {
                 if (artifact.getResource().getReferenceElement().getResourceType().equals("Library")) {
                     org.hl7.fhir.dstu3.model.Library library = libraryResourceProvider.resolveLibraryById(artifact.getResource().getReferenceElement().getIdPart());
 
                     if (library != null && isLogicLibrary(library)) {
-                        libraries.add(
-                                libraryLoader.load(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()))
-                        );
+                        libraryIdentifiers.add(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()));
                     }
                 }
             }
         }
 
+        return loadLibraries(libraryIdentifiers, libraryLoader);
+    }
+
+    // Libraries are compiled concurrently in dependency order when the loader supports it
+    private static List<org.cqframework.cql.elm.execution.Library> loadLibraries(List<VersionedIdentifier> libraryIdentifiers,
+            org.opencds.cqf.cql.engine.execution.LibraryLoader libraryLoader) {
+        if (libraryLoader instanceof LibraryLoader) {
+            return ((LibraryLoader) libraryLoader).loadAll(libraryIdentifiers);
+        }
+
+        List<org.cqframework.cql.elm.execution.Library> libraries = new ArrayList<org.cqframework.cql.elm.execution.Library>();
+        for (VersionedIdentifier libraryIdentifier : libraryIdentifiers) {
+            libraries.add(libraryLoader.load(libraryIdentifier));
+        }
+
         return libraries;
     }
 
-    private static boolean isLogicLibrary(org.hl7.fhir.dstu3.model.Library library) {
+    public static boolean isLogicLibrary(org.hl7.fhir.dstu3.model.Library library) {
         if (library == null) {
             return false;
         }
@@ -0,0 +1,54 @@
+package org.opencds.cqf.dstu3.helpers;
+
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.Extension;
+import org.hl7.fhir.dstu3.model.DecimalType;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.opencds.cqf.common.retrieve.RetrieveMetrics;
+
+/**
+ * Counters are reported as decimals, as server-wide totals outgrow a FHIR
+ * integer.
+ */
+public class RetrieveMetricsHelper {
+
+    /**
+     * Summarizes the given retrieves as an extension, with a nested extension per
+     * resource type.
+     */
+    public static Extension toExtension(RetrieveMetrics metrics) {
+        Extension summary = new Extension().setUrl(RetrieveMetrics.SUMMARY_EXTENSION_URL);
+        for (Map.Entry<String, RetrieveMetrics.TypeMetrics> entry : metrics.getTypes().entrySet()) {
+            RetrieveMetrics.TypeMetrics type = entry.getValue();
+            Extension retrieve = summary.addExtension().setUrl("retrieve");
+            retrieve.addExtension("resourceType", new StringType(entry.getKey()));
+            retrieve.addExtension("retrieves", new DecimalType(type.getRetrieves()));
+            retrieve.addExtension("queries", new DecimalType(type.getQueries()));
+            retrieve.addExtension("rows", new DecimalType(type.getRows()));
+            retrieve.addExtension("searchMillis", new DecimalType(type.getSearchMillis()));
+            retrieve.addExtension("loadMillis", new DecimalType(type.getLoadMillis()));
+            retrieve.addExtension("memoized", new DecimalType(type.getMemoized()));
+        }
+
+        return summary;
+    }
+
+    /**
+     * Adds a retrieve parameter per resource type, with the metrics as parts.
+     */
+    public static void addParameters(Parameters parameters, RetrieveMetrics metrics) {
+        for (Map.Entry<String, RetrieveMetrics.TypeMetrics> entry : metrics.getTypes().entrySet()) {
+            RetrieveMetrics.TypeMetrics type = entry.getValue();
+            Parameters.ParametersParameterComponent retrieve = parameters.addParameter().setName("retrieve");
+            retrieve.addPart().setName("resourceType").setValue(new StringType(entry.getKey()));
+            retrieve.addPart().setName("retrieves").setValue(new DecimalType(type.getRetrieves()));
+            retrieve.addPart().setName("queries").setValue(new DecimalType(type.getQueries()));
+            retrieve.addPart().setName("rows").setValue(new DecimalType(type.getRows()));
+            retrieve.addPart().setName("searchMillis").setValue(new DecimalType(type.getSearchMillis()));
+            retrieve.addPart().setName("loadMillis").setValue(new DecimalType(type.getLoadMillis()));
+            retrieve.addPart().setName("memoized").setValue(new DecimalType(type.getMemoized()));
+        }
+    }
+}
@@ -2,11 +2,16 @@ package org.opencds.cqf.dstu3.providers;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
+import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
@@ -66,43 +71,82 @@ public class ApplyCqlOperationProvider {
     }
 
     public Bundle applyCql(Bundle bundle) throws FHIRException {
+        List<Resource> resources = new ArrayList<>();
         for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
             if (entry.hasResource()) {
-                applyCqlToResource(entry.getResource());
+                resources.add(entry.getResource());
             }
         }
 
+        applyCql(resources);
         return bundle;
     }
 
     public Resource applyCqlToResource(Resource resource) throws FHIRException {
-        Library library;
-        Context context;
-        // String fhirVersion = this.context.getVersion().getVersion().getFhirVersionString();
-        String fhirVersion = "3.0.0";
-        for (Property child : resource.children()) {
-            for (Base base : child.getValues()) {
-                if (base != null) {
-                    List<String> extension = getExtension(base);
-                    if (!extension.isEmpty()) {
-                        String cql = String.format("using FHIR version '"+ fhirVersion + "' define x: %s", extension.get(1));
-                        library = TranslatorHelper.translateLibrary(cql, new LibraryManager(new ModelManager()),
-                                new ModelManager());
-                        context = new Context(library);
-                        context.registerDataProvider("http://hl7.org/fhir",
-                                this.providerFactory.createDataProvider("FHIR", fhirVersion));
-                        Object result = context.resolveExpressionRef("x").getExpression().evaluate(context);
-                        if (extension.get(0).equals("extension")) {
-                            resource.setProperty(child.getName(), resolveType(result, base.fhirType()));
-                        } else {
-                            String type = base.getChildByName(extension.get(0)).getTypeCode();
-                            base.setProperty(extension.get(0), resolveType(result, type));
+        applyCql(Collections.singletonList(resource));
+        return resource;
+    }
+
+    // Compiles every expression found in the resources as a definition of a single
+    // library, so the whole batch costs one translation and one Context.
+    private void applyCql(List<Resource> resources) throws FHIRException {
+        List<ExpressionTarget> targets = new ArrayList<>();
+        Map<String, String> definitions = new LinkedHashMap<>();
+        for (Resource resource : resources) {
+            for (Property child : resource.children()) {
+                for (Base base : child.getValues()) {
+                    if (base != null) {
+                        List<String> extension = getExtension(base);
+                        if (!extension.isEmpty()) {
+                            String name = definitions.get(extension.get(1));
+                            if (name == null) {
+                                name = "Expression " + (definitions.size() + 1);
+                                definitions.put(extension.get(1), name);
+                            }
+                            targets.add(new ExpressionTarget(resource, child.getName(), base, extension.get(0), name));
                         }
                     }
                 }
             }
         }
-        return resource;
+
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        // String fhirVersion = this.context.getVersion().getVersion().getFhirVersionString();
+        String fhirVersion = "3.0.0";
+        StringBuilder cql = new StringBuilder("using FHIR version '" + fhirVersion + "'");
+        for (Map.Entry<String, String> definition : definitions.entrySet()) {
+            cql.append("\ndefine \"").append(definition.getValue()).append("\": ").append(definition.getKey());
+        }
+
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = TranslatorHelper.getTranslator(cql.toString(), new LibraryManager(modelManager),
+                modelManager);
+        if (translator.getErrors().size() > 0) {
+            throw new IllegalArgumentException(TranslatorHelper.errorsToString(translator.getErrors()));
+        }
+
+        Library library = TranslatorHelper.translateLibrary(translator);
+        Context context = new Context(library);
+        context.registerDataProvider("http://hl7.org/fhir",
+                this.providerFactory.createDataProvider("FHIR", fhirVersion));
+
+        Map<String, Object> results = new HashMap<>();
+        for (String name : definitions.values()) {
+            results.put(name, context.resolveExpressionRef(name).getExpression().evaluate(context));
+        }
+
+        for (ExpressionTarget target : targets) {
+            Object result = results.get(target.definition);
+            if (target.property.equals("extension")) {
+                target.resource.setProperty(target.child, resolveType(result, target.base.fhirType()));
+            } else {
+                String type = target.base.getChildByName(target.property).getTypeCode();
+                target.base.setProperty(target.property, resolveType(result, type));
+            }
+        }
     }
 
     private List<String> getExtension(Base base) {
@@ -161,4 +205,20 @@ public class ApplyCqlOperationProvider {
 
         throw new RuntimeException("Unable to resolve type: " + source.getClass().getSimpleName());
     }
+
+    private static class ExpressionTarget {
+        private final Resource resource;
+        private final String child;
+        private final Base base;
+        private final String property;
+        private final String definition;
+
+        ExpressionTarget(Resource resource, String child, Base base, String property, String definition) {
+            this.resource = resource;
+            this.child = child;
+            this.base = base;
+            this.property = property;
+            this.definition = definition;
+        }
+    }
 }
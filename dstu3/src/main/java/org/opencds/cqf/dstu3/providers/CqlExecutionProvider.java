@@ -1,16 +1,16 @@
 package org.opencds.cqf.dstu3.providers;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.inject.Inject;
 
+import com.google.common.hash.Hashing;
+
 import org.apache.commons.lang3.tuple.Triple;
-import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
 import org.cqframework.cql.elm.tracking.TrackBack;
 import org.hl7.fhir.dstu3.model.ActivityDefinition;
@@ -20,13 +20,17 @@ import org.hl7.fhir.dstu3.model.Extension;
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Library;
 import org.hl7.fhir.dstu3.model.Measure;
+import org.hl7.fhir.dstu3.model.MetadataResource;
 import org.hl7.fhir.dstu3.model.Parameters;
 import org.hl7.fhir.dstu3.model.PlanDefinition;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.dstu3.model.Type;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CqlTranslationCache;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.ExpressionLibraryCache;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
 import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
@@ -41,6 +45,7 @@ import org.opencds.cqf.dstu3.helpers.FhirMeasureBundler;
 import org.opencds.cqf.dstu3.helpers.LibraryHelper;
 import org.springframework.stereotype.Component;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 
@@ -50,13 +55,19 @@ import ca.uhn.fhir.rest.annotation.OperationParam;
 @Component
 public class CqlExecutionProvider {
     private EvaluationProviderFactory providerFactory;
+    private CqlTranslationCache translationCache = new CqlTranslationCache(HapiProperties.getCqlTranslationCacheSize());
+    private ExpressionLibraryCache expressionLibraryCache;
     private LibraryResolutionProvider<Library> libraryResolutionProvider;
+    private FhirContext context;
 
     @Inject
     public CqlExecutionProvider(LibraryResolutionProvider<Library> libraryResolutionProvider,
-            EvaluationProviderFactory providerFactory) {
+            EvaluationProviderFactory providerFactory, FhirContext context,
+            ExpressionLibraryCache expressionLibraryCache) {
         this.providerFactory = providerFactory;
+        this.expressionLibraryCache = expressionLibraryCache;
         this.libraryResolutionProvider = libraryResolutionProvider;
+        this.context = context;
     }
 
     private LibraryResolutionProvider<Library> getLibraryResourceProvider() {
@@ -93,7 +104,6 @@ public class CqlExecutionProvider {
             for (Resource resource : instance.getContained()) {
                 if (resource instanceof Library) {
                     resource.setId(resource.getIdElement().getIdPart().replace("#", ""));
-                    getLibraryResourceProvider().update((Library) resource);
                     // getLibraryLoader().putLibrary(resource.getIdElement().getIdPart(),
                     // getLibraryLoader().toElmLibrary((Library) resource));
                 }
@@ -128,6 +138,15 @@ public class CqlExecutionProvider {
         return cleanReferences(references);
     }
 
+    // Only writes contained libraries back when the stored Library differs
+    private void storeContainedLibraries(DomainResource instance) {
+        for (Resource resource : instance.getContained()) {
+            if (resource instanceof Library && !isStored((Library) resource)) {
+                getLibraryResourceProvider().update((Library) resource);
+            }
+        }
+    }
+
     private String buildIncludes(Iterable<Reference> references) {
         StringBuilder builder = new StringBuilder();
         for (Reference reference : references) {
@@ -169,19 +188,23 @@ public class CqlExecutionProvider {
         // value of a parameter named the same as the resource
         // This enables expressions to access the resource by root, as well as through
         // the %context attribute
-        String source = String.format(
-                "library LocalLibrary using FHIR version '"+ fhirVersion + "' include FHIRHelpers version '"+ fhirVersion + "' called FHIRHelpers %s parameter %s %s parameter \"%%context\" %s define Expression: %s",
-                buildIncludes(libraries), instance.fhirType(), instance.fhirType(), instance.fhirType(), cql);
-        // String source = String.format("library LocalLibrary using FHIR version '1.8'
-        // include FHIRHelpers version '1.8' called FHIRHelpers %s parameter %s %s
-        // parameter \"%%context\" %s define Expression: %s",
-        // buildIncludes(libraries), instance.fhirType(), instance.fhirType(),
-        // instance.fhirType(), cql);
-
+        // Included libraries are loaded for each evaluation, from their current source
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        String key = getExpressionKey(instance, libraries, cql);
+        org.cqframework.cql.elm.execution.Library library = this.expressionLibraryCache.getIfPresent(key);
+        if (library == null) {
+            // Any Library write clears the cache, so on a hit the contained libraries are already stored
+            storeContainedLibraries(instance);
+            library = this.expressionLibraryCache.get(key, () -> {
+                String source = String.format(
+                        "library LocalLibrary using FHIR version '"+ fhirVersion + "' include FHIRHelpers version '"+ fhirVersion + "' called FHIRHelpers %s parameter %s %s parameter \"%%context\" %s define Expression: %s",
+                        buildIncludes(libraries), instance.fhirType(), instance.fhirType(), instance.fhirType(), cql);
+
+                return TranslatorHelper.translateLibrary(source, libraryLoader.getLibraryManager(),
+                        libraryLoader.getModelManager());
+            });
+        }
 
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(source,
-                libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
         Context context = new Context(library);
         context.setParameter(null, instance.fhirType(), instance);
         context.setParameter(null, "%context", instance);
@@ -193,6 +216,56 @@ public class CqlExecutionProvider {
         return context.resolveExpressionRef("Expression").evaluate(context);
     }
 
+    // The compiled expression depends on the resource type, the resource (through
+    // its libraries and contained libraries) and the expression itself
+    private String getExpressionKey(DomainResource instance, Iterable<Reference> libraries, String cql) {
+        StringBuilder key = new StringBuilder(instance.fhirType());
+        if (instance instanceof MetadataResource && ((MetadataResource) instance).hasUrl()) {
+            key.append('|').append(((MetadataResource) instance).getUrl()).append('|')
+                    .append(((MetadataResource) instance).getVersion());
+        } else {
+            key.append('|').append(instance.getIdElement().getIdPart()).append('|')
+                    .append(instance.getMeta().getVersionId());
+        }
+
+        for (Reference library : libraries) {
+            key.append('|').append(library.getReference());
+        }
+
+        for (Resource resource : instance.getContained()) {
+            if (resource instanceof Library) {
+                key.append('|').append(getContentHash(resource));
+            }
+        }
+
+        return key.append('|').append(cql).toString();
+    }
+
+    private boolean isStored(Library library) {
+        Library stored;
+        try {
+            stored = getLibraryResourceProvider().resolveLibraryById(library.getIdElement().getIdPart());
+        } catch (RuntimeException e) {
+            return false;
+        }
+
+        return stored != null && getContentHash(withoutMeta(stored)).equals(getContentHash(withoutMeta(library)));
+    }
+
+    // The server sets the version and meta of what it stores
+    private static Library withoutMeta(Library library) {
+        Library copy = library.copy();
+        copy.setId(library.getIdElement().getIdPart());
+        copy.setMeta(null);
+        return copy;
+    }
+
+    private String getContentHash(Resource resource) {
+        return Hashing.sha256()
+                .hashString(this.context.newJsonParser().encodeResourceToString(resource), StandardCharsets.UTF_8)
+                .toString();
+    }
+
     @SuppressWarnings("unchecked")
     @Operation(name = "$cql")
     public Bundle evaluate(@OperationParam(name = "code") String code,
@@ -210,7 +283,7 @@ public class CqlExecutionProvider {
             throw new IllegalArgumentException("Must specify a patientId when executing in Patient context.");
         }
 
-        CqlTranslator translator;
+        CqlTranslationCache.Entry translation;
         FhirMeasureBundler bundler = new FhirMeasureBundler();
 
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.getLibraryResourceProvider());
@@ -218,11 +291,11 @@ public class CqlExecutionProvider {
         List<Resource> results = new ArrayList<>();
 
         try {
-            translator = TranslatorHelper.getTranslator(code, libraryLoader.getLibraryManager(),
+            translation = this.translationCache.getEntry(code, libraryLoader.getLibraryManager(),
                     libraryLoader.getModelManager());
 
-            if (translator.getErrors().size() > 0) {
-                for (CqlTranslatorException cte : translator.getErrors()) {
+            if (translation.hasErrors()) {
+                for (CqlTranslatorException cte : translation.getErrors()) {
                     Parameters result = new Parameters();
                     TrackBack tb = cte.getLocator();
                     if (tb != null) {
@@ -245,9 +318,9 @@ public class CqlExecutionProvider {
             return bundler.bundle(results);
         }
 
-        Map<String, List<Integer>> locations = getLocations(translator.getTranslatedLibrary().getLibrary());
+        Map<String, List<Integer>> locations = translation.getLocations();
 
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(translator);
+        org.cqframework.cql.elm.execution.Library library = translation.getLibrary();
         Context context = new Context(library);
         context.registerLibraryLoader(libraryLoader);
 
@@ -348,22 +421,6 @@ public class CqlExecutionProvider {
         return bundler.bundle(results);
     }
 
-    private Map<String, List<Integer>> getLocations(org.hl7.elm.r1.Library library) {
-        Map<String, List<Integer>> locations = new HashMap<>();
-
-        if (library.getStatements() == null)
-            return locations;
-
-        for (org.hl7.elm.r1.ExpressionDef def : library.getStatements().getDef()) {
-            int startLine = def.getTrackbacks().isEmpty() ? 0 : def.getTrackbacks().get(0).getStartLine();
-            int startChar = def.getTrackbacks().isEmpty() ? 0 : def.getTrackbacks().get(0).getStartChar();
-            List<Integer> loc = Arrays.asList(startLine, startChar);
-            locations.put(def.getName(), loc);
-        }
-
-        return locations;
-    }
-
     private String resolveType(Object result) {
         String type = result == null ? "Null" : result.getClass().getSimpleName();
         switch (type) {
@@ -1,6 +1,7 @@
 package org.opencds.cqf.dstu3.providers;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 
@@ -17,6 +18,11 @@ import org.hl7.fhir.dstu3.model.Narrative;
 import org.hl7.fhir.dstu3.model.Parameters;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.evaluation.CachingLibraryManager;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+import org.opencds.cqf.common.evaluation.LibraryElmCache;
+import org.opencds.cqf.common.evaluation.MeasureArtifactCache;
+import org.opencds.cqf.common.evaluation.ResourceReadCache;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 import org.opencds.cqf.tooling.library.stu3.NarrativeProvider;
@@ -40,13 +46,18 @@ public class LibraryOperationsProvider implements org.opencds.cqf.common.provide
     private NarrativeProvider narrativeProvider;
     private DataRequirementsProvider dataRequirementsProvider;
     private LibraryResourceProvider libraryResourceProvider;
+    private LibraryElmCache libraryElmCache;
+    private ResourceReadCache resourceReadCache;
 
     @Inject
     public LibraryOperationsProvider(LibraryResourceProvider libraryResourceProvider,
-            NarrativeProvider narrativeProvider) {
+            NarrativeProvider narrativeProvider, LibraryElmCache libraryElmCache,
+            ResourceReadCache resourceReadCache) {
         this.narrativeProvider = narrativeProvider;
         this.dataRequirementsProvider = new DataRequirementsProvider();
         this.libraryResourceProvider = libraryResourceProvider;
+        this.libraryElmCache = libraryElmCache;
+        this.resourceReadCache = resourceReadCache;
     }
 
     private ModelManager getModelManager() {
@@ -84,6 +95,28 @@ public class LibraryOperationsProvider implements org.opencds.cqf.common.provide
         ModelManager modelManager = this.getModelManager();
         LibraryManager libraryManager = this.getLibraryManager(modelManager);
 
+        this.refreshGeneratedContent(theResource, libraryManager, modelManager);
+
+        return this.libraryResourceProvider.update(theRequest, theResource, theId,
+                theRequestDetails.getConditionalUrl(RestOperationTypeEnum.UPDATE), theRequestDetails);
+    }
+
+    /**
+     * Regenerates the ELM, related artifacts, data requirements and narrative of
+     * the given Library in place, without saving it. Included libraries are
+     * resolved through the shared compiled library cache, so this is safe to
+     * call from several threads at once.
+     */
+    public Library refreshGeneratedContent(Library theResource) {
+        CachingLibraryManager libraryManager = new CachingLibraryManager(CompiledLibraryCache.getInstance());
+        libraryManager.getLibrarySourceLoader().clearProviders();
+        libraryManager.getLibrarySourceLoader().registerProvider(getLibrarySourceProvider());
+
+        return this.refreshGeneratedContent(theResource, libraryManager, libraryManager.getCache().getModelManager());
+    }
+
+    private Library refreshGeneratedContent(Library theResource, LibraryManager libraryManager,
+            ModelManager modelManager) {
         CqlTranslator translator = this.dataRequirementsProvider.getTranslator(theResource, libraryManager,
                 modelManager);
         if (translator.getErrors().size() > 0) {
@@ -97,8 +130,7 @@ public class LibraryOperationsProvider implements org.opencds.cqf.common.provide
         Narrative n = this.narrativeProvider.getNarrative(this.libraryResourceProvider.getContext(), theResource);
         theResource.setText(n);
 
-        return this.libraryResourceProvider.update(theRequest, theResource, theId,
-                theRequestDetails.getConditionalUrl(RestOperationTypeEnum.UPDATE), theRequestDetails);
+        return theResource;
     }
 
     @Operation(name = "$get-elm", idempotent = true, type = Library.class)
@@ -106,19 +138,21 @@ public class LibraryOperationsProvider implements org.opencds.cqf.common.provide
         Library theResource = this.libraryResourceProvider.getDao().read(theId);
         // this.formatCql(theResource);
 
-        ModelManager modelManager = this.getModelManager();
-        LibraryManager libraryManager = this.getLibraryManager(modelManager);
+        String elmFormat = "json".equals(format) ? "json" : "xml";
+        String elm = this.libraryElmCache.getElm(theResource.getIdElement(), elmFormat, () -> {
+            ModelManager modelManager = this.getModelManager();
+            LibraryManager libraryManager = this.getLibraryManager(modelManager);
 
-        String elm = "";
-        CqlTranslator translator = this.dataRequirementsProvider.getTranslator(theResource, libraryManager,
-                modelManager);
-        if (translator != null) {
-            if (format.equals("json")) {
-                elm = translator.toJson();
-            } else {
-                elm = translator.toXml();
+            CqlTranslator translator = this.dataRequirementsProvider.getTranslator(theResource, libraryManager,
+                    modelManager);
+            if (translator == null) {
+                return new LibraryElmCache.Elm("", null);
             }
-        }
+
+            return new LibraryElmCache.Elm(elmFormat.equals("json") ? translator.toJson() : translator.toXml(),
+                    new HashSet<>(libraryManager.getTranslatedLibraries().keySet()));
+        });
+
         Parameters p = new Parameters();
         p.addParameter().setValue(new StringType(elm));
         return p;
@@ -127,9 +161,17 @@ public class LibraryOperationsProvider implements org.opencds.cqf.common.provide
     @Operation(name = "$get-narrative", idempotent = true, type = Library.class)
     public Parameters getNarrative(@IdParam IdType theId) {
         Library theResource = this.libraryResourceProvider.getDao().read(theId);
-        Narrative n = this.narrativeProvider.getNarrative(this.libraryResourceProvider.getContext(), theResource);
+
+        // Rendered once per Library version
+        IdType id = theResource.getIdElement();
+        String key = id.hasIdPart() && id.hasVersionIdPart()
+                ? "Library/" + id.getIdPart() + "/" + id.getVersionIdPart()
+                : null;
+        String narrative = MeasureArtifactCache.getInstance().get(key, "narrative", String.class,
+                () -> this.narrativeProvider.getNarrative(this.libraryResourceProvider.getContext(), theResource)
+                        .getDivAsString());
         Parameters p = new Parameters();
-        p.addParameter().setValue(new StringType(n.getDivAsString()));
+        p.addParameter().setValue(new StringType(narrative));
         return p;
     }
 
@@ -142,7 +184,7 @@ public class LibraryOperationsProvider implements org.opencds.cqf.common.provide
     @Override
     public Library resolveLibraryById(String libraryId) {
         try {
-            return this.libraryResourceProvider.getDao().read(new IdType(libraryId));
+            return this.resourceReadCache.read(this.libraryResourceProvider.getDao(), new IdType(libraryId));
         } catch (Exception e) {
             throw new IllegalArgumentException(String.format("Could not resolve library id %s", libraryId));
         }
@@ -1,15 +1,22 @@
 package org.opencds.cqf.dstu3.providers;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
@@ -39,13 +46,19 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.ParallelLibraryLoader.DaemonThreadFactory;
+import org.opencds.cqf.common.evaluation.ResourceReadCache;
+import org.opencds.cqf.common.helpers.BoundedTaskWindow;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
+import org.opencds.cqf.common.retrieve.RetrieveMetrics;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.dstu3.evaluation.MeasureEvaluation;
 import org.opencds.cqf.dstu3.evaluation.MeasureEvaluationSeed;
 import org.opencds.cqf.dstu3.helpers.LibraryHelper;
+import org.opencds.cqf.dstu3.helpers.RetrieveMetricsHelper;
 import org.opencds.cqf.tooling.library.stu3.NarrativeProvider;
 import org.opencds.cqf.tooling.measure.stu3.CqfMeasure;
 import org.slf4j.Logger;
@@ -61,6 +74,7 @@ import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
@@ -76,15 +90,23 @@ public class MeasureOperationsProvider {
     private MeasureResourceProvider measureResourceProvider;
     private DaoRegistry registry;
     private EvaluationProviderFactory factory;
+    private ResourceReadCache resourceReadCache;
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureOperationsProvider.class);
 
+    private static final int HQMF_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService hqmfExecutor = Executors.newFixedThreadPool(HQMF_THREADS,
+            new DaemonThreadFactory("hqmf-export"));
+    // HQMF documents generated or waiting to be written at a time, per request
+    private static final int HQMF_WINDOW = HQMF_THREADS * 2;
+
     @Inject
     public MeasureOperationsProvider(DaoRegistry registry, EvaluationProviderFactory factory,
             NarrativeProvider narrativeProvider, HQMFProvider hqmfProvider,
             LibraryResolutionProvider<Library> libraryResolutionProvider,
-            MeasureResourceProvider measureResourceProvider) {
+            MeasureResourceProvider measureResourceProvider, ResourceReadCache resourceReadCache) {
         this.registry = registry;
+        this.resourceReadCache = resourceReadCache;
         this.factory = factory;
 
         this.libraryResolutionProvider = libraryResolutionProvider;
@@ -103,11 +125,78 @@ public class MeasureOperationsProvider {
         return p;
     }
 
+    /**
+     * Streams a zip of the HQMF for the given Measures, or for every Measure, to
+     * the response. Measures are read a page at a time, and documents are
+     * generated on a shared pool with a bounded number in flight, written in
+     * order as they complete, and dropped once written. A Measure that fails, or
+     * can't be read, is written as an id.error.txt entry.
+     */
+    @Operation(name = "$hqmf", idempotent = true, type = Measure.class, manualResponse = true)
+    public void hqmfExport(HttpServletResponse theResponse,
+            @OperationParam(name = "measure") List<StringType> measureIds) throws IOException {
+        theResponse.setStatus(200);
+        theResponse.setContentType("application/zip");
+        theResponse.setHeader("Content-Disposition", "attachment; filename=\"hqmf.zip\"");
+        try (ZipOutputStream zip = new ZipOutputStream(theResponse.getOutputStream())) {
+            BoundedTaskWindow<String, String, IOException> window = new BoundedTaskWindow<>(hqmfExecutor,
+                    HQMF_WINDOW, (id, hqmf, failure) -> this.writeHQMF(zip, id, hqmf, failure));
+            if (measureIds != null && !measureIds.isEmpty()) {
+                for (StringType measureId : measureIds) {
+                    IdType id = new IdType("Measure", measureId.getValue());
+                    window.submit(id.getIdPart(),
+                            () -> this.generateHQMF(this.measureResourceProvider.getDao().read(id)));
+                }
+            } else {
+                IBundleProvider bundleProvider = this.measureResourceProvider.getDao().search(new SearchParameterMap());
+                for (int from = 0;; from += HQMF_WINDOW) {
+                    List<IBaseResource> page = bundleProvider.getResources(from, from + HQMF_WINDOW);
+                    if (page == null || page.isEmpty()) {
+                        break;
+                    }
+
+                    for (IBaseResource resource : page) {
+                        Measure measure = (Measure) resource;
+                        window.submit(measure.getIdElement().getIdPart(), () -> this.generateHQMF(measure));
+                    }
+                }
+            }
+
+            window.drain();
+        }
+    }
+
+    // Writes a document, or the reason it could not be generated
+    private void writeHQMF(ZipOutputStream zip, String id, String hqmf, Throwable failure) throws IOException {
+        String entry = id + ".xml";
+        String content = hqmf;
+        if (failure != null) {
+            logger.warn("Unable to generate HQMF for Measure/{}: {}", id, failure.getMessage());
+            content = String.valueOf(failure.getMessage());
+            entry = id + ".error.txt";
+        }
+
+        zip.putNextEntry(new ZipEntry(entry));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
     @Operation(name = "$refresh-generated-content", type = Measure.class)
     public MethodOutcome refreshGeneratedContent(HttpServletRequest theRequest, RequestDetails theRequestDetails,
             @IdParam IdType theId) {
         Measure theResource = this.measureResourceProvider.getDao().read(theId);
 
+        this.refreshGeneratedContent(theResource);
+
+        return this.measureResourceProvider.update(theRequest, theResource, theId,
+                theRequestDetails.getConditionalUrl(RestOperationTypeEnum.UPDATE), theRequestDetails);
+    }
+
+    /**
+     * Regenerates the related artifacts and narrative of the given Measure in
+     * place, without saving it.
+     */
+    public Measure refreshGeneratedContent(Measure theResource) {
         theResource.getRelatedArtifact().removeIf(
                 relatedArtifact -> relatedArtifact.getType().equals(RelatedArtifact.RelatedArtifactType.DEPENDSON));
 
@@ -140,25 +229,23 @@ public class MeasureOperationsProvider {
         }
 
         // logger.info("Narrative: " + n.getDivAsString());
-        return this.measureResourceProvider.update(theRequest, theResource, theId,
-                theRequestDetails.getConditionalUrl(RestOperationTypeEnum.UPDATE), theRequestDetails);
+        return theResource;
     }
 
     @Operation(name = "$get-narrative", idempotent = true, type = Measure.class)
     public Parameters getNarrative(@IdParam IdType theId) {
         Measure theResource = this.measureResourceProvider.getDao().read(theId);
-        CqfMeasure cqfMeasure = this.dataRequirementsProvider.createCqfMeasure(theResource,
-                this.libraryResolutionProvider);
-        Narrative n = this.narrativeProvider.getNarrative(this.measureResourceProvider.getContext(), cqfMeasure);
+        String narrative = this.dataRequirementsProvider.getMeasureArtifact(theResource,
+                this.libraryResolutionProvider, "narrative", String.class, cqfMeasure -> this.narrativeProvider
+                        .getNarrative(this.measureResourceProvider.getContext(), cqfMeasure).getDivAsString());
         Parameters p = new Parameters();
-        p.addParameter().setValue(new StringType(n.getDivAsString()));
+        p.addParameter().setValue(new StringType(narrative));
         return p;
     }
 
     private String generateHQMF(Measure theResource) {
-        CqfMeasure cqfMeasure = this.dataRequirementsProvider.createCqfMeasure(theResource,
-                this.libraryResolutionProvider);
-        return this.hqmfProvider.generateHQMF(cqfMeasure);
+        return this.dataRequirementsProvider.getMeasureArtifact(theResource, this.libraryResolutionProvider, "hqmf",
+                String.class, this.hqmfProvider::generateHQMF);
     }
 
     /*
@@ -177,43 +264,58 @@ public class MeasureOperationsProvider {
             @OperationParam(name = "lastReceivedOn") String lastReceivedOn,
             @OperationParam(name = "source") String source, @OperationParam(name = "user") String user,
             @OperationParam(name = "pass") String pass) throws InternalErrorException, FHIRException {
-        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
-        MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader,
-                this.libraryResolutionProvider);
-        Measure measure = this.measureResourceProvider.getDao().read(theId);
+        // Retrieves are counted for the report only if it carries their summary
+        RetrieveMetrics metrics = HapiProperties.getCqlRetrieveSummaryEnabled() ? RetrieveMetrics.startRequest()
+                : null;
+        try {
+            LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+            MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader,
+                    this.libraryResolutionProvider);
+            Measure measure = this.measureResourceProvider.getDao().read(theId);
 
-        if (measure == null) {
-            throw new RuntimeException("Could not find Measure/" + theId.getIdPart());
-        }
+            if (measure == null) {
+                throw new RuntimeException("Could not find Measure/" + theId.getIdPart());
+            }
 
-        seed.setup(measure, periodStart, periodEnd, productLine, source, user, pass);
-
-        // resolve report type
-        MeasureEvaluation evaluator = new MeasureEvaluation(this.registry,
-                seed.getMeasurementPeriod());
-        if (reportType != null) {
-            switch (reportType) {
-                case "patient":
-                    return evaluator.evaluatePatientMeasure(seed.getMeasure(), seed.getContext(), patientRef);
-                case "patient-list":
-                    return evaluator.evaluatePatientListMeasure(seed.getMeasure(), seed.getContext(), practitionerRef);
-                case "population":
-                    return evaluator.evaluatePopulationMeasure(seed.getMeasure(), seed.getContext());
-                default:
-                    throw new IllegalArgumentException("Invalid report type: " + reportType);
+            seed.setup(measure, periodStart, periodEnd, productLine, source, user, pass);
+
+            // resolve report type
+            MeasureEvaluation evaluator = new MeasureEvaluation(this.registry,
+                    seed.getMeasurementPeriod());
+            MeasureReport report;
+            if (reportType != null) {
+                switch (reportType) {
+                    case "patient":
+                        report = evaluator.evaluatePatientMeasure(seed.getMeasure(), seed.getContext(), patientRef);
+                        break;
+                    case "patient-list":
+                        report = evaluator.evaluatePatientListMeasure(seed.getMeasure(), seed.getContext(), practitionerRef);
+                        break;
+                    case "population":
+                        report = evaluator.evaluatePopulationMeasure(seed.getMeasure(), seed.getContext());
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid report type: " + reportType);
+                }
+            } else {
+                // default report type is patient
+                report = evaluator.evaluatePatientMeasure(seed.getMeasure(), seed.getContext(), patientRef);
+                if (productLine != null) {
+                    Extension ext = new Extension();
+                    ext.setUrl("http://hl7.org/fhir/us/cqframework/cqfmeasures/StructureDefinition/cqfm-productLine");
+                    ext.setValue(new StringType(productLine));
+                    report.addExtension(ext);
+                }
             }
-        }
 
-        // default report type is patient
-        MeasureReport report = evaluator.evaluatePatientMeasure(seed.getMeasure(), seed.getContext(), patientRef);
-        if (productLine != null) {
-            Extension ext = new Extension();
-            ext.setUrl("http://hl7.org/fhir/us/cqframework/cqfmeasures/StructureDefinition/cqfm-productLine");
-            ext.setValue(new StringType(productLine));
-            report.addExtension(ext);
-        }
+            if (metrics != null) {
+                report.addExtension(RetrieveMetricsHelper.toExtension(metrics));
+            }
 
-        return report;
+            return report;
+        } finally {
+            RetrieveMetrics.endRequest();
+        }
     }
 
     // @Operation(name = "$evaluate-measure-with-source", idempotent = true)
@@ -610,9 +712,9 @@ public class MeasureOperationsProvider {
             else if (values.get(0) instanceof Reference
                     && ((Reference) values.get(0)).getReferenceElement().hasResourceType()
                     && ((Reference) values.get(0)).getReferenceElement().hasIdPart()) {
-                Resource fetchedResource = (Resource) registry
-                        .getResourceDao(((Reference) values.get(0)).getReferenceElement().getResourceType())
-                        .read(new IdType(((Reference) values.get(0)).getReferenceElement().getIdPart()));
+                Resource fetchedResource = (Resource) this.resourceReadCache.read(
+                        registry.getResourceDao(((Reference) values.get(0)).getReferenceElement().getResourceType()),
+                        new IdType(((Reference) values.get(0)).getReferenceElement().getIdPart()));
 
                 if (!resourceMap.containsKey(fetchedResource.getIdElement().getValue())) {
                     parameters.addParameter(new Parameters.ParametersParameterComponent().setName("resource")
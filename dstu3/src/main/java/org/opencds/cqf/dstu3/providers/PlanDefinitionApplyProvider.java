@@ -22,6 +22,7 @@ import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.ResourceReadCache;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.fhir.model.Dstu3FhirModelResolver;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
@@ -56,6 +57,7 @@ public class PlanDefinitionApplyProvider {
 
     private IFhirResourceDao<PlanDefinition> planDefinitionDao;
     private IFhirResourceDao<ActivityDefinition> activityDefinitionDao;
+    private ResourceReadCache resourceReadCache;
 
     private FhirContext fhirContext;
 
@@ -65,8 +67,10 @@ public class PlanDefinitionApplyProvider {
     public PlanDefinitionApplyProvider(FhirContext fhirContext,
             ActivityDefinitionApplyProvider activityDefinitionApplyProvider,
             IFhirResourceDao<PlanDefinition> planDefinitionDao,
-            IFhirResourceDao<ActivityDefinition> activityDefinitionDao, CqlExecutionProvider executionProvider) {
+            IFhirResourceDao<ActivityDefinition> activityDefinitionDao, CqlExecutionProvider executionProvider,
+            ResourceReadCache resourceReadCache) {
         this.executionProvider = executionProvider;
+        this.resourceReadCache = resourceReadCache;
         this.modelResolver = new Dstu3FhirModelResolver();
         this.activityDefinitionApplyProvider = activityDefinitionApplyProvider;
         this.planDefinitionDao = planDefinitionDao;
@@ -401,8 +405,8 @@ public class PlanDefinitionApplyProvider {
                                 }
                             }
 
-                            ActivityDefinition activityDefinition = this.activityDefinitionDao
-                                    .read(action.getDefinition().getReferenceElement());
+                            ActivityDefinition activityDefinition = this.resourceReadCache
+                                    .read(this.activityDefinitionDao, action.getDefinition().getReferenceElement());
                             if (activityDefinition.hasDescription()) {
                                 actionBuilder.buildDescripition(activityDefinition.getDescription());
                             }
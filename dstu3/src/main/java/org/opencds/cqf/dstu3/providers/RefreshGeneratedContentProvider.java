@@ -0,0 +1,109 @@
+package org.opencds.cqf.dstu3.providers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.dstu3.model.Attachment;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.Library;
+import org.hl7.fhir.dstu3.model.Measure;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.opencds.cqf.common.providers.BaseRefreshGeneratedContentProvider;
+import org.opencds.cqf.dstu3.helpers.LibraryHelper;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * System-level $refresh-generated-content. See
+ * {@link BaseRefreshGeneratedContentProvider} for how the refresh is run.
+ */
+@Component
+public class RefreshGeneratedContentProvider extends BaseRefreshGeneratedContentProvider<Library, Measure> {
+
+    private LibraryOperationsProvider libraryOperationsProvider;
+    private MeasureOperationsProvider measureOperationsProvider;
+
+    @Inject
+    public RefreshGeneratedContentProvider(DaoRegistry registry, LibraryOperationsProvider libraryOperationsProvider,
+            MeasureOperationsProvider measureOperationsProvider) {
+        super(registry, Library.class, Measure.class);
+        this.libraryOperationsProvider = libraryOperationsProvider;
+        this.measureOperationsProvider = measureOperationsProvider;
+    }
+
+    @Operation(name = "$refresh-generated-content")
+    public Parameters refreshGeneratedContent(RequestDetails theRequestDetails,
+            @OperationParam(name = "type") String type, @OperationParam(name = "chunkSize") IntegerType chunkSize) {
+        Progress progress = this.refreshGeneratedContent(theRequestDetails, type,
+                chunkSize != null ? chunkSize.getValue() : null);
+
+        Parameters p = new Parameters();
+        p.addParameter().setName("total").setValue(new IntegerType(progress.getTotal()));
+        p.addParameter().setName("refreshed").setValue(new IntegerType(progress.getRefreshed()));
+        p.addParameter().setName("failed").setValue(new IntegerType(progress.getFailures().size()));
+        p.addParameter().setName("transactions").setValue(new IntegerType(progress.getTransactions()));
+        p.addParameter().setName("elapsedMillis")
+                .setValue(new IntegerType((int) progress.getElapsedMillis()));
+        for (Map.Entry<String, String> failure : progress.getFailures().entrySet()) {
+            Parameters.ParametersParameterComponent parameter = p.addParameter().setName("failure");
+            parameter.addPart().setName("resource").setValue(new StringType(failure.getKey()));
+            parameter.addPart().setName("message").setValue(new StringType(failure.getValue()));
+        }
+        return p;
+    }
+
+    @Override
+    protected String getCql(Library library) {
+        if (!library.hasName() || !LibraryHelper.isLogicLibrary(library)) {
+            return null;
+        }
+
+        for (Attachment content : library.getContent()) {
+            if ("text/cql".equals(content.getContentType()) && content.hasData()) {
+                return new String(content.getData(), StandardCharsets.UTF_8);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    protected String getName(Library library) {
+        return library.getName();
+    }
+
+    @Override
+    protected Library refreshLibrary(Library library) {
+        return this.libraryOperationsProvider.refreshGeneratedContent(library);
+    }
+
+    @Override
+    protected Measure refreshMeasure(Measure measure) {
+        return this.measureOperationsProvider.refreshGeneratedContent(measure);
+    }
+
+    @Override
+    protected IBaseBundle createTransaction(List<Pair<IBaseResource, String>> updates) {
+        Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        for (Pair<IBaseResource, String> update : updates) {
+            Resource resource = (Resource) update.getLeft();
+            transaction.addEntry().setResource(resource).getRequest().setMethod(Bundle.HTTPVerb.PUT)
+                    .setUrl(resource.getIdElement().toUnqualifiedVersionless().getValue())
+                    .setIfMatch(update.getRight());
+        }
+        return transaction;
+    }
+}
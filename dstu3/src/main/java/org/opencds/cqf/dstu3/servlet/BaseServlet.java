@@ -6,10 +6,20 @@ import java.util.List;
 import javax.servlet.ServletException;
 
 import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Library;
 import org.hl7.fhir.dstu3.model.Meta;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+import org.opencds.cqf.common.evaluation.ExpressionLibraryCache;
+import org.opencds.cqf.common.evaluation.LibraryDirectoryListener;
+import org.opencds.cqf.common.evaluation.LibraryElmCache;
+import org.opencds.cqf.common.evaluation.MeasureArtifactCache;
+import org.opencds.cqf.common.providers.DirectoryLibrarySourceProvider;
+import org.opencds.cqf.common.providers.LibraryResolutionProvider;
+import org.opencds.cqf.dstu3.helpers.LibraryHelper;
 import org.opencds.cqf.dstu3.providers.CqfRulerJpaConformanceProviderDstu3;
 import org.opencds.cqf.dstu3.providers.OAuthProvider;
+import org.opencds.cqf.dstu3.providers.ReadinessProvider;
 import org.opencds.cqf.tooling.measure.stu3.CodeTerminologyRef;
 import org.opencds.cqf.tooling.measure.stu3.CqfMeasure;
 import org.opencds.cqf.tooling.measure.stu3.PopulationCriteriaMap;
@@ -77,6 +87,21 @@ public class BaseServlet extends RestfulServer {
         List<Class<?>> operationsProviders = appCtx.getBean("myOperationProvidersDstu3", List.class);
         operationsProviders.forEach(x -> registerProvider(appCtx.getBean(x)));
 
+        if (HapiProperties.getCqlPrecompileEnabled()) {
+            appCtx.getBean(ReadinessProvider.class).precompileLibraries();
+        }
+
+        DirectoryLibrarySourceProvider libraryDirectory = CompiledLibraryCache.getInstance().getLibraryDirectory();
+        if (libraryDirectory != null) {
+            LibraryResolutionProvider<Library> libraryResolutionProvider = (LibraryResolutionProvider<Library>) appCtx
+                    .getBean(LibraryResolutionProvider.class);
+            libraryDirectory.addListener(new LibraryDirectoryListener(
+                    () -> LibraryHelper.createLibraryLoader(libraryResolutionProvider).getLibraryManager()
+                            .getLibrarySourceLoader(),
+                    MeasureArtifactCache.getInstance()::clear, appCtx.getBean(LibraryElmCache.class)::clear,
+                    appCtx.getBean(ExpressionLibraryCache.class)::clear));
+        }
+
         if(HapiProperties.getOAuthEnabled()) {
                 OAuthProvider oauthProvider = new OAuthProvider();
                 oauthProvider.setDaoConfig(daoConfig);
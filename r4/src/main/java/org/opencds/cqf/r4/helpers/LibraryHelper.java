@@ -4,11 +4,13 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.cqframework.cql.cql2elm.LibraryManager;
-import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.r4.model.*;
+import org.opencds.cqf.common.evaluation.CachingLibraryManager;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
+import org.opencds.cqf.common.providers.InMemoryLibraryResourceProvider;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 
@@ -17,26 +19,39 @@ import org.opencds.cqf.common.providers.LibrarySourceProvider;
  */
 public class LibraryHelper {
 
+    /**
+     * Libraries in the watched library directory override stored Libraries, but
+     * not libraries supplied explicitly with a request (e.g. in a bundle).
+     */
     public static LibraryLoader createLibraryLoader(LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> provider) {
-        ModelManager modelManager = new ModelManager();
-        LibraryManager libraryManager = new LibraryManager(modelManager);
-        libraryManager.getLibrarySourceLoader().clearProviders();
-
-        libraryManager.getLibrarySourceLoader().registerProvider(
+        return createLibraryLoader(
                 new LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment>(provider,
-                        x -> x.getContent(), x -> x.getContentType(), x -> x.getData()));
-
-        return new LibraryLoader(libraryManager, modelManager);
+                        x -> x.getContent(), x -> x.getContentType(), x -> x.getData()),
+                provider instanceof InMemoryLibraryResourceProvider);
     }
 
     public static LibraryLoader createLibraryLoader(org.cqframework.cql.cql2elm.LibrarySourceProvider provider) {
-        ModelManager modelManager = new ModelManager();
-        LibraryManager libraryManager = new LibraryManager(modelManager);
+        return createLibraryLoader(provider, true);
+    }
+
+    private static LibraryLoader createLibraryLoader(org.cqframework.cql.cql2elm.LibrarySourceProvider provider,
+            boolean supplied) {
+        CompiledLibraryCache cache = CompiledLibraryCache.getInstance();
+        LibraryManager libraryManager = new CachingLibraryManager(cache);
         libraryManager.getLibrarySourceLoader().clearProviders();
+        if (supplied) {
+            libraryManager.getLibrarySourceLoader().registerProvider(provider);
+        }
+
+        if (cache.getLibraryDirectory() != null) {
+            libraryManager.getLibrarySourceLoader().registerProvider(cache.getLibraryDirectory());
+        }
 
-        libraryManager.getLibrarySourceLoader().registerProvider(provider);
+        if (!supplied) {
+            libraryManager.getLibrarySourceLoader().registerProvider(provider);
+        }
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, cache.getModelManager());
     }
 
     public static org.hl7.fhir.r4.model.Library resolveLibraryReference(LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider, String reference) {
@@ -55,7 +70,7 @@ public class LibraryHelper {
     public static List<org.cqframework.cql.elm.execution.Library> loadLibraries(Measure measure,
             org.opencds.cqf.cql.engine.execution.LibraryLoader libraryLoader,
             LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
-        List<org.cqframework.cql.elm.execution.Library> libraries = new ArrayList<org.cqframework.cql.elm.execution.Library>();
+        List<VersionedIdentifier> libraryIdentifiers = new ArrayList<VersionedIdentifier>();
 
         // load libraries
         //TODO: if there's a bad measure argument, this blows up for an obscure error
@@ -80,13 +95,11 @@ public class LibraryHelper {
             }
 
             if (library != null && isLogicLibrary(library)) {
-                libraries.add(
-                        libraryLoader.load(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()))
-                );
+                libraryIdentifiers.add(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()));
             }
         }
 
-        if (libraries.isEmpty()) {
+        if (libraryIdentifiers.isEmpty()) {
             throw new IllegalArgumentException(String
                     .format("Could not load library source for libraries referenced in Measure/%s.", measure.getId()));
         }
@@ -99,17 +112,30 @@ public class LibraryHelper {
                 library = resolveLibraryReference(libraryResourceProvider, artifact.getResource());
 
                 if (library != null && isLogicLibrary(library)) {
-                    libraries.add(
-                            libraryLoader.load(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()))
-                    );
+                    libraryIdentifiers.add(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()));
                 }
             }
         }
 
+        return loadLibraries(libraryIdentifiers, libraryLoader);
+    }
+
+    // Libraries are compiled concurrently in dependency order when the loader supports it
+    private static List<org.cqframework.cql.elm.execution.Library> loadLibraries(List<VersionedIdentifier> libraryIdentifiers,
+            org.opencds.cqf.cql.engine.execution.LibraryLoader libraryLoader) {
+        if (libraryLoader instanceof LibraryLoader) {
+            return ((LibraryLoader) libraryLoader).loadAll(libraryIdentifiers);
+        }
+
+        List<org.cqframework.cql.elm.execution.Library> libraries = new ArrayList<org.cqframework.cql.elm.execution.Library>();
+        for (VersionedIdentifier libraryIdentifier : libraryIdentifiers) {
+            libraries.add(libraryLoader.load(libraryIdentifier));
+        }
+
         return libraries;
     }
 
-    private static boolean isLogicLibrary(org.hl7.fhir.r4.model.Library library) {
+    public static boolean isLogicLibrary(org.hl7.fhir.r4.model.Library library) {
         if (library == null) {
             return false;
         }
@@ -0,0 +1,481 @@
+package org.opencds.cqf.r4.providers;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Endpoint;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.ParallelLibraryLoader.DaemonThreadFactory;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+import org.opencds.cqf.cql.engine.execution.EvaluationResult;
+import org.opencds.cqf.r4.helpers.FhirMeasureBundler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Asynchronous Library $evaluate over many subjects, modeled on the FHIR Bulk
+ * Data kick-off and status requests.
+ *
+ * Library/[id]/$evaluate-async starts a job and returns 202 with the status
+ * URL in Content-Location. Subjects are evaluated on a shared worker pool,
+ * each worker with an engine of its own, and every result is written straight
+ * to an NDJSON file as one Parameters line per subject and expression. The
+ * Patient members of a Group are searched by the workers a page at a time, so
+ * memory stays flat whatever the size of the Group. A Patient in more than one
+ * of the given Groups is evaluated once for each.
+ * $evaluate-status returns 202 with X-Progress while the job runs, then the
+ * manifest listing the files, which $evaluate-output serves. A DELETE of the
+ * status URL cancels the job and deletes its files; HAPI operations only
+ * accept GET and POST, so the provider is also registered as a server
+ * interceptor to handle it.
+ *
+ * Finished jobs and their files are removed by a scheduled sweep once they
+ * expire. Jobs do not survive a restart, so output left by an earlier run is
+ * deleted at startup. Only directories holding the marker file written with
+ * each job are deleted, as the output directory may be shared.
+ */
+@Component
+@Interceptor
+public class AsyncEvaluationProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncEvaluationProvider.class);
+
+    // Finished jobs, and their files, are removed after this long
+    private static final long JOB_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(24);
+    // Written into each job directory, so only those are removed at startup
+    private static final String JOB_MARKER = ".evaluate-async-job";
+    // Group members read at a time
+    private static final int PAGE_SIZE = 100;
+
+    private LibraryOperationsProvider libraryOperationsProvider;
+    private FhirContext fhirContext;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService cleanup;
+
+    @Inject
+    public AsyncEvaluationProvider(LibraryOperationsProvider libraryOperationsProvider, FhirContext fhirContext) {
+        this.libraryOperationsProvider = libraryOperationsProvider;
+        this.fhirContext = fhirContext;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, HapiProperties.getCqlEvaluateAsyncThreads()),
+                new DaemonThreadFactory("evaluate-async"));
+
+        this.removeEarlierOutput();
+        this.cleanup = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("evaluate-async-cleanup"));
+        this.cleanup.scheduleWithFixedDelay(this::removeExpiredJobs, 1, 1, TimeUnit.HOURS);
+    }
+
+    @Operation(name = "$evaluate-async", type = Library.class, manualResponse = true)
+    public void evaluateAsync(RequestDetails theRequestDetails, HttpServletResponse theResponse,
+            @IdParam IdType theId, @OperationParam(name = "subject") List<StringType> subject,
+            @OperationParam(name = "expression") List<StringType> expression,
+            @OperationParam(name = "periodStart") String periodStart,
+            @OperationParam(name = "periodEnd") String periodEnd,
+            @OperationParam(name = "productLine") String productLine,
+            @OperationParam(name = "terminologyEndpoint") Endpoint terminologyEndpoint,
+            @OperationParam(name = "dataEndpoint") Endpoint dataEndpoint,
+            @OperationParam(name = "context") String contextParam,
+            @OperationParam(name = "executionResults") String executionResults,
+            @OperationParam(name = "parameters") Parameters parameters,
+            @OperationParam(name = "additionalData") Bundle additionalData) throws IOException {
+        if (subject == null || subject.isEmpty()) {
+            throw new IllegalArgumentException("Must specify at least one subject or Group.");
+        }
+
+        Library theResource = this.libraryOperationsProvider.getLibrary(theId, additionalData);
+        Job job = new Job();
+        job.serverBase = theRequestDetails.getFhirServerBase();
+        job.request = theRequestDetails.getCompleteUrl();
+        job.directory = Paths.get(HapiProperties.getCqlEvaluateAsyncDirectory(), job.id);
+        job.libraryIdentifier = new VersionedIdentifier().withId(theResource.getName())
+                .withVersion(theResource.getVersion());
+        job.subjects = new Subjects(subject);
+        job.expressions = LibraryOperationsProvider.getExpressions(expression);
+        job.context = contextParam != null ? contextParam : "Patient";
+        job.parameters = LibraryOperationsProvider.getResolvedParameters(parameters, periodStart, periodEnd,
+                productLine);
+        job.executionResults = executionResults;
+        job.terminologyEndpoint = terminologyEndpoint;
+        job.dataEndpoint = dataEndpoint;
+        job.additionalData = additionalData;
+        Files.createDirectories(job.directory);
+        Files.createFile(job.directory.resolve(JOB_MARKER));
+
+        this.jobs.put(job.id, job);
+        int workers = Math.max(1, HapiProperties.getCqlEvaluateAsyncThreads());
+        job.activeWorkers.set(workers);
+        for (int i = 0; i < workers; i++) {
+            int worker = i;
+            this.executor.submit(() -> this.work(job, worker));
+        }
+
+        logger.info("Started evaluation job {} of {} for {} subjects and Groups", job.id,
+                job.libraryIdentifier.getId(), job.subjects.references.size());
+
+        theResponse.setStatus(202);
+        theResponse.setHeader("Content-Location", job.serverBase + "/$evaluate-status?_jobId=" + job.id);
+    }
+
+    @Operation(name = "$evaluate-status", idempotent = true, manualResponse = true)
+    public void evaluateStatus(HttpServletResponse theResponse, @OperationParam(name = "_jobId") String jobId)
+            throws IOException {
+        Job job = this.getJob(jobId);
+        if (!job.done) {
+            theResponse.setStatus(202);
+            theResponse.setHeader("X-Progress", String.format("%d subjects evaluated", job.completed.get()));
+            theResponse.setHeader("Retry-After", "5");
+            return;
+        }
+
+        if (job.error != null) {
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.EXCEPTION).setDiagnostics(job.error);
+            theResponse.setStatus(500);
+            theResponse.setContentType("application/fhir+json");
+            theResponse.setCharacterEncoding("UTF-8");
+            theResponse.getWriter().write(this.fhirContext.newJsonParser().encodeResourceToString(outcome));
+            return;
+        }
+
+        theResponse.setStatus(200);
+        theResponse.setContentType("application/json");
+        theResponse.setCharacterEncoding("UTF-8");
+        theResponse.getWriter().write(new GsonBuilder().setPrettyPrinting().create().toJson(job.getManifest()));
+    }
+
+    /**
+     * Cancels the job named in a DELETE of its status URL. Returns false, so
+     * HAPI does not process the request further, once it has been handled.
+     */
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED)
+    public boolean cancelOnDelete(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        if (!"DELETE".equals(theRequest.getMethod()) || theRequest.getPathInfo() == null
+                || !theRequest.getPathInfo().endsWith("/$evaluate-status")) {
+            return true;
+        }
+
+        String jobId = theRequest.getParameter("_jobId");
+        Job job = jobId != null ? this.jobs.get(jobId) : null;
+        if (job == null) {
+            theResponse.setStatus(404);
+            return false;
+        }
+
+        job.cancelled = true;
+        if (job.done) {
+            this.remove(job);
+        }
+
+        logger.info("Cancelled evaluation job {}", job.id);
+        theResponse.setStatus(202);
+        return false;
+    }
+
+    @Operation(name = "$evaluate-output", idempotent = true, manualResponse = true)
+    public void evaluateOutput(HttpServletResponse theResponse, @OperationParam(name = "_jobId") String jobId,
+            @OperationParam(name = "file") String file) throws IOException {
+        Job job = this.getJob(jobId);
+
+        // Only files listed in the manifest are served
+        Path path = null;
+        synchronized (job.outputs) {
+            for (Output output : job.outputs) {
+                if (output.path.getFileName().toString().equals(file)) {
+                    path = output.path;
+                }
+            }
+        }
+
+        if (!job.done || path == null || !Files.exists(path)) {
+            throw new ResourceNotFoundException(String.format("Evaluation job %s has no output file %s", jobId, file));
+        }
+
+        theResponse.setStatus(200);
+        theResponse.setContentType("application/fhir+ndjson");
+        Files.copy(path, theResponse.getOutputStream());
+    }
+
+    private void work(Job job, int worker) {
+        Path path = job.directory.resolve("evaluate-" + worker + ".ndjson");
+        IParser parser = this.fhirContext.newJsonParser().setPrettyPrint(false);
+        FhirMeasureBundler bundler = new FhirMeasureBundler();
+        int count = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            CqlEngine engine = this.libraryOperationsProvider.createEngine(job.terminologyEndpoint, job.dataEndpoint,
+                    job.additionalData);
+
+            String subjectId;
+            while (!job.cancelled && (subjectId = job.subjects.next()) != null) {
+                String subject = job.context + "/" + subjectId;
+                try {
+                    EvaluationResult result = LibraryOperationsProvider.evaluate(engine, job.libraryIdentifier,
+                            job.expressions, Pair.of(job.context, subjectId), job.parameters);
+                    if (result != null && result.expressionResults != null) {
+                        for (Map.Entry<String, Object> def : result.expressionResults.entrySet()) {
+                            Parameters line = this.libraryOperationsProvider.toParameters(def.getKey(),
+                                    def.getValue(), job.executionResults, bundler);
+                            line.setId((String) null);
+                            line.getParameter().add(0, new Parameters.ParametersParameterComponent()
+                                    .setName("subject").setValue(new StringType(subject)));
+                            line.getParameter().add(1, new Parameters.ParametersParameterComponent()
+                                    .setName("expression").setValue(new StringType(def.getKey())));
+                            writer.write(parser.encodeResourceToString(line));
+                            writer.newLine();
+                            count++;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    job.failed.incrementAndGet();
+                    Parameters line = new Parameters();
+                    line.addParameter().setName("subject").setValue(new StringType(subject));
+                    line.addParameter().setName("error").setValue(
+                            new StringType(e.getMessage() != null ? e.getMessage() : e.getClass().getName()));
+                    writer.write(parser.encodeResourceToString(line));
+                    writer.newLine();
+                    count++;
+                }
+
+                job.completed.incrementAndGet();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Evaluation job {} failed", job.id, e);
+            job.error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        } finally {
+            if (count > 0) {
+                synchronized (job.outputs) {
+                    job.outputs.add(new Output(path, count));
+                }
+            }
+
+            if (job.activeWorkers.decrementAndGet() == 0) {
+                job.finished = System.currentTimeMillis();
+                job.done = true;
+                if (job.cancelled) {
+                    this.remove(job);
+                } else {
+                    logger.info("Finished evaluation job {}: {} subjects, {} failed", job.id, job.completed.get(),
+                            job.failed.get());
+                }
+            }
+        }
+    }
+
+    private Job getJob(String jobId) {
+        Job job = jobId != null ? this.jobs.get(jobId) : null;
+        if (job == null || job.cancelled) {
+            throw new ResourceNotFoundException(String.format("Unknown evaluation job %s", jobId));
+        }
+
+        return job;
+    }
+
+    private void removeExpiredJobs() {
+        long now = System.currentTimeMillis();
+        for (Job job : this.jobs.values()) {
+            if (job.done && now - job.finished > JOB_EXPIRY_MILLIS) {
+                this.remove(job);
+            }
+        }
+    }
+
+    private void remove(Job job) {
+        // Only one caller deletes the files
+        if (this.jobs.remove(job.id) != null) {
+            delete(job.directory);
+        }
+    }
+
+    // Job directories are named for their UUIDs and hold the marker; anything else
+    // was not written here
+    private void removeEarlierOutput() {
+        Path directory = Paths.get(HapiProperties.getCqlEvaluateAsyncDirectory());
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.list(directory)) {
+            paths.filter(x -> Files.isDirectory(x) && isJobId(x.getFileName().toString())
+                    && Files.exists(x.resolve(JOB_MARKER)))
+                    .forEach(AsyncEvaluationProvider::delete);
+        } catch (IOException e) {
+            logger.warn("Unable to remove earlier evaluation output in {}: {}", directory, e.getMessage());
+        }
+    }
+
+    private static boolean isJobId(String name) {
+        try {
+            return UUID.fromString(name).toString().equals(name);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void delete(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(x -> x.toFile().delete());
+        } catch (IOException e) {
+            logger.warn("Unable to delete evaluation output {}: {}", directory, e.getMessage());
+        }
+    }
+
+    private static class Output {
+        private final Path path;
+        private final int count;
+
+        Output(Path path, int count) {
+            this.path = path;
+            this.count = count;
+        }
+    }
+
+    // Hands the subject ids out to the workers, in order, searching the members
+    // of each Group a page at a time
+    private class Subjects {
+        private final List<IdType> references = new ArrayList<>();
+        private final Deque<String> page = new ArrayDeque<>();
+        private int next;
+        private IBundleProvider members;
+        private int from;
+
+        Subjects(List<StringType> subject) {
+            Set<String> references = new LinkedHashSet<>();
+            for (StringType reference : subject) {
+                if (reference.hasValue()) {
+                    references.add(reference.getValue());
+                }
+            }
+
+            for (String reference : references) {
+                this.references.add(new IdType(reference));
+            }
+        }
+
+        // Null once every subject has been handed out
+        synchronized String next() {
+            while (this.page.isEmpty()) {
+                if (this.members != null) {
+                    List<IBaseResource> resources = this.members.getResources(this.from, this.from + PAGE_SIZE);
+                    this.from += PAGE_SIZE;
+                    if (resources == null || resources.isEmpty()) {
+                        this.members = null;
+                    } else {
+                        resources.forEach(x -> this.page.add(x.getIdElement().getIdPart()));
+                    }
+                } else if (this.next < this.references.size()) {
+                    IdType id = this.references.get(this.next++);
+                    if ("Group".equals(id.getResourceType())) {
+                        this.members = libraryOperationsProvider.searchGroupMembers(id);
+                        this.from = 0;
+                    } else {
+                        this.page.add(id.getIdPart());
+                    }
+                } else {
+                    return null;
+                }
+            }
+
+            return this.page.poll();
+        }
+    }
+
+    private static class Job {
+        private final String id = UUID.randomUUID().toString();
+        private final Date transactionTime = new Date();
+        private String serverBase;
+        private String request;
+        private Path directory;
+        private VersionedIdentifier libraryIdentifier;
+        private Subjects subjects;
+        private Set<String> expressions;
+        private String context;
+        private Map<String, Object> parameters;
+        private String executionResults;
+        private Endpoint terminologyEndpoint;
+        private Endpoint dataEndpoint;
+        private Bundle additionalData;
+
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger activeWorkers = new AtomicInteger();
+        private final List<Output> outputs = new ArrayList<>();
+        private volatile String error;
+        private volatile long finished;
+        private volatile boolean done;
+        private volatile boolean cancelled;
+
+        JsonObject getManifest() {
+            JsonObject manifest = new JsonObject();
+            manifest.addProperty("transactionTime", new InstantType(this.transactionTime).getValueAsString());
+            manifest.addProperty("request", this.request);
+            manifest.addProperty("requiresAccessToken", false);
+
+            JsonArray output = new JsonArray();
+            synchronized (this.outputs) {
+                for (Output file : this.outputs) {
+                    JsonObject entry = new JsonObject();
+                    entry.addProperty("type", "Parameters");
+                    entry.addProperty("url", this.serverBase + "/$evaluate-output?_jobId=" + this.id + "&file="
+                            + file.path.getFileName());
+                    entry.addProperty("count", file.count);
+                    output.add(entry);
+                }
+            }
+            manifest.add("output", output);
+            manifest.add("error", new JsonArray());
+            return manifest;
+        }
+    }
+}
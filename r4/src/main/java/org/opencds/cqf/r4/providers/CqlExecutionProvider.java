@@ -1,16 +1,16 @@
 package org.opencds.cqf.r4.providers;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.inject.Inject;
 
+import com.google.common.hash.Hashing;
+
 import org.apache.commons.lang3.tuple.Triple;
-import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
 import org.cqframework.cql.elm.tracking.TrackBack;
 import org.hl7.fhir.r4.model.ActivityDefinition;
@@ -20,12 +20,16 @@ import org.hl7.fhir.r4.model.DomainResource;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MetadataResource;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.PlanDefinition;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Type;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CqlTranslationCache;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.ExpressionLibraryCache;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
 import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
@@ -51,13 +55,17 @@ import ca.uhn.fhir.rest.annotation.OperationParam;
 @Component
 public class CqlExecutionProvider {
     private EvaluationProviderFactory providerFactory;
+    private CqlTranslationCache translationCache = new CqlTranslationCache(HapiProperties.getCqlTranslationCacheSize());
+    private ExpressionLibraryCache expressionLibraryCache;
     private LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider;
     private FhirContext context;
 
     @Inject
     public CqlExecutionProvider(LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider,
-            EvaluationProviderFactory providerFactory, FhirContext context) {
+            EvaluationProviderFactory providerFactory, FhirContext context,
+            ExpressionLibraryCache expressionLibraryCache) {
         this.providerFactory = providerFactory;
+        this.expressionLibraryCache = expressionLibraryCache;
         this.libraryResourceProvider = libraryResourceProvider;
         this.context = context;
     }
@@ -94,7 +102,6 @@ public class CqlExecutionProvider {
             for (Resource resource : instance.getContained()) {
                 if (resource instanceof Library) {
                     resource.setId(resource.getIdElement().getIdPart().replace("#", ""));
-                    getLibraryResourceProvider().update((Library) resource);
                     // getLibraryLoader().putLibrary(resource.getIdElement().getIdPart(),
                     // getLibraryLoader().toElmLibrary((Library) resource));
                 }
@@ -129,6 +136,15 @@ public class CqlExecutionProvider {
         return cleanReferences(references);
     }
 
+    // Only writes contained libraries back when the stored Library differs
+    private void storeContainedLibraries(DomainResource instance) {
+        for (Resource resource : instance.getContained()) {
+            if (resource instanceof Library && !isStored((Library) resource)) {
+                getLibraryResourceProvider().update((Library) resource);
+            }
+        }
+    }
+
     private String buildIncludes(Iterable<CanonicalType> references) {
         StringBuilder builder = new StringBuilder();
         for (CanonicalType reference : references) {
@@ -169,25 +185,84 @@ public class CqlExecutionProvider {
     public Object evaluateInContext(DomainResource instance, String cql, String patientId) {
         Iterable<CanonicalType> libraries = getLibraryReferences(instance);
 
-        String fhirVersion = this.context.getVersion().getVersion().getFhirVersionString();
-
-        String source = String.format(
-                "library LocalLibrary using FHIR version '" + fhirVersion + "' include FHIRHelpers version '"+ fhirVersion +"' called FHIRHelpers %s parameter %s %s parameter \"%%context\" %s define Expression: %s",
-                buildIncludes(libraries), instance.fhirType(), instance.fhirType(), instance.fhirType(), cql);
-
+        // Included libraries are loaded for each evaluation, from their current source
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.getLibraryResourceProvider());
-
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(source,
-                libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
+        String key = getExpressionKey(instance, libraries, cql);
+        org.cqframework.cql.elm.execution.Library library = this.expressionLibraryCache.getIfPresent(key);
+        if (library == null) {
+            // Any Library write clears the cache, so on a hit the contained libraries are already stored
+            storeContainedLibraries(instance);
+            library = this.expressionLibraryCache.get(key, () -> {
+                String fhirVersion = this.context.getVersion().getVersion().getFhirVersionString();
+
+                String source = String.format(
+                        "library LocalLibrary using FHIR version '" + fhirVersion + "' include FHIRHelpers version '"+ fhirVersion +"' called FHIRHelpers %s parameter %s %s parameter \"%%context\" %s define Expression: %s",
+                        buildIncludes(libraries), instance.fhirType(), instance.fhirType(), instance.fhirType(), cql);
+
+                return TranslatorHelper.translateLibrary(source, libraryLoader.getLibraryManager(),
+                        libraryLoader.getModelManager());
+            });
+        }
 
         // resolve execution context
         Context context = setupContext(instance, patientId, libraryLoader, library);
         return context.resolveExpressionRef("Expression").evaluate(context);
     }
 
+    // The compiled expression depends on the resource type, the resource (through
+    // its libraries and contained libraries) and the expression itself
+    private String getExpressionKey(DomainResource instance, Iterable<CanonicalType> libraries, String cql) {
+        StringBuilder key = new StringBuilder(instance.fhirType());
+        if (instance instanceof MetadataResource && ((MetadataResource) instance).hasUrl()) {
+            key.append('|').append(((MetadataResource) instance).getUrl()).append('|')
+                    .append(((MetadataResource) instance).getVersion());
+        } else {
+            key.append('|').append(instance.getIdElement().getIdPart()).append('|')
+                    .append(instance.getMeta().getVersionId());
+        }
+
+        for (CanonicalType library : libraries) {
+            key.append('|').append(library.getValue());
+        }
+
+        for (Resource resource : instance.getContained()) {
+            if (resource instanceof Library) {
+                key.append('|').append(getContentHash(resource));
+            }
+        }
+
+        return key.append('|').append(cql).toString();
+    }
+
+    private boolean isStored(Library library) {
+        Library stored;
+        try {
+            stored = getLibraryResourceProvider().resolveLibraryById(library.getIdElement().getIdPart());
+        } catch (RuntimeException e) {
+            return false;
+        }
+
+        return stored != null && getContentHash(withoutMeta(stored)).equals(getContentHash(withoutMeta(library)));
+    }
+
+    // The server sets the version and meta of what it stores
+    private static Library withoutMeta(Library library) {
+        Library copy = library.copy();
+        copy.setId(library.getIdElement().getIdPart());
+        copy.setMeta(null);
+        return copy;
+    }
+
+    private String getContentHash(Resource resource) {
+        return Hashing.sha256()
+                .hashString(this.context.newJsonParser().encodeResourceToString(resource), StandardCharsets.UTF_8)
+                .toString();
+    }
+
     public Object evaluateInContext(DomainResource instance, String cql, String patientId, Boolean aliasedExpression) {
         Iterable<CanonicalType> libraries = getLibraryReferences(instance);
         if (aliasedExpression) {
+            storeContainedLibraries(instance);
             Object result = null;
             for (CanonicalType reference : libraries) {
                 Library lib = this.libraryResourceProvider.resolveLibraryById(CanonicalHelper.getId(reference));
@@ -212,7 +287,8 @@ public class CqlExecutionProvider {
         }
     }
 
-    private Context setupContext(DomainResource instance, String patientId, LibraryLoader libraryLoader,
+    private Context setupContext(DomainResource instance, String patientId,
+            org.opencds.cqf.cql.engine.execution.LibraryLoader libraryLoader,
             org.cqframework.cql.elm.execution.Library library) {
         // Provide the instance as the value of the '%context' parameter, as well as the
         // value of a parameter named the same as the resource
@@ -246,7 +322,7 @@ public class CqlExecutionProvider {
             throw new IllegalArgumentException("Must specify a patientId when executing in Patient context.");
         }
 
-        CqlTranslator translator;
+        CqlTranslationCache.Entry translation;
         FhirMeasureBundler bundler = new FhirMeasureBundler();
 
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.getLibraryResourceProvider());
@@ -254,11 +330,11 @@ public class CqlExecutionProvider {
         List<Resource> results = new ArrayList<>();
 
         try {
-            translator = TranslatorHelper.getTranslator(code, libraryLoader.getLibraryManager(),
+            translation = this.translationCache.getEntry(code, libraryLoader.getLibraryManager(),
                     libraryLoader.getModelManager());
 
-            if (translator.getErrors().size() > 0) {
-                for (CqlTranslatorException cte : translator.getErrors()) {
+            if (translation.hasErrors()) {
+                for (CqlTranslatorException cte : translation.getErrors()) {
                     Parameters result = new Parameters();
                     TrackBack tb = cte.getLocator();
                     if (tb != null) {
@@ -281,9 +357,9 @@ public class CqlExecutionProvider {
             return bundler.bundle(results);
         }
 
-        Map<String, List<Integer>> locations = getLocations(translator.getTranslatedLibrary().getLibrary());
+        Map<String, List<Integer>> locations = translation.getLocations();
 
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(translator);
+        org.cqframework.cql.elm.execution.Library library = translation.getLibrary();
         Context context = new Context(library);
         context.registerLibraryLoader(libraryLoader);
 
@@ -397,22 +473,6 @@ public class CqlExecutionProvider {
         return bundler.bundle(results);
     }
 
-    private Map<String, List<Integer>> getLocations(org.hl7.elm.r1.Library library) {
-        Map<String, List<Integer>> locations = new HashMap<>();
-
-        if (library.getStatements() == null)
-            return locations;
-
-        for (org.hl7.elm.r1.ExpressionDef def : library.getStatements().getDef()) {
-            int startLine = def.getTrackbacks().isEmpty() ? 0 : def.getTrackbacks().get(0).getStartLine();
-            int startChar = def.getTrackbacks().isEmpty() ? 0 : def.getTrackbacks().get(0).getStartChar();
-            List<Integer> loc = Arrays.asList(startLine, startChar);
-            locations.put(def.getName(), loc);
-        }
-
-        return locations;
-    }
-
     private String resolveType(Object result) {
         String type = result == null ? "Null" : result.getClass().getSimpleName();
         switch (type) {
@@ -13,6 +13,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import com.google.common.base.Strings;
@@ -45,6 +48,7 @@ import org.cqframework.cql.tools.formatter.CqlFormatterVisitor.FormatResult;
 import org.hl7.elm.r1.ValueSetRef;
 import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.Base64BinaryType;
+import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.DataRequirement;
@@ -53,7 +57,9 @@ import org.hl7.fhir.r4.model.MarkdownType;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.ParameterDefinition;
 import org.hl7.fhir.r4.model.RelatedArtifact;
+import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.evaluation.MeasureArtifactCache;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
@@ -69,6 +75,9 @@ import org.opencds.cqf.r4.helpers.LibraryHelper;
 @Component
 public class DataRequirementsProvider {
 
+    private static final String REFERENCE = "reference:";
+    private static final String INCLUDE = "include:";
+
     // For creating the CQF measure we need to:
     // 1. Find the Primary Library Resource
     // 2. Load the Primary Library as ELM. This will recursively load the dependent
@@ -80,9 +89,157 @@ public class DataRequirementsProvider {
     // Once via the loader, Once manually
     public CqfMeasure createCqfMeasure(Measure measure,
             LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
+        return this.createCqfMeasure(measure, this.createLibraryMap(measure, libraryResourceProvider));
+    }
+
+    /**
+     * Returns an artifact generated from the Measure's CqfMeasure, such as its
+     * HQMF. Only the artifact is cached: each miss builds its own CqfMeasure, as
+     * the generators may modify it.
+     */
+    public <T> T getMeasureArtifact(Measure measure,
+            LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider, String artifact,
+            Class<T> type, Function<CqfMeasure, T> generator) {
+        return this.getArtifact(measure, libraryResourceProvider, artifact, type,
+                libraryMap -> generator.apply(this.createCqfMeasure(measure, libraryMap)));
+    }
+
+    // Looks the artifact up by how the Measure's libraries were resolved when it
+    // was last cached. A hit resolves the same references and includes again
+    // without loading any library, so a Library that was changed, or that now
+    // matches an include, yields a new key.
+    private <T> T getArtifact(Measure measure,
+            LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider, String artifact,
+            Class<T> type,
+            Function<Map<VersionedIdentifier, Pair<Library, org.hl7.fhir.r4.model.Library>>, T> generator) {
+        MeasureArtifactCache cache = MeasureArtifactCache.getInstance();
+        String measureKey = getMeasureKey(measure);
+        @SuppressWarnings("unchecked")
+        List<String> requests = cache.getIfPresent(measureKey, "libraries", List.class);
+        if (requests != null) {
+            T value = cache.getIfPresent(
+                    getArtifactKey(measureKey, resolveLibraryRequests(requests, libraryResourceProvider)), artifact,
+                    type);
+            if (value != null) {
+                return value;
+            }
+        }
+
         Map<VersionedIdentifier, Pair<Library, org.hl7.fhir.r4.model.Library>> libraryMap = this
                 .createLibraryMap(measure, libraryResourceProvider);
-        return this.createCqfMeasure(measure, libraryMap);
+        if (measureKey == null) {
+            return generator.apply(libraryMap);
+        }
+
+        requests = getLibraryRequests(measure, libraryMap);
+        Set<String> libraries = resolveLibraryRequests(requests, libraryResourceProvider);
+        if (libraries == null) {
+            return generator.apply(libraryMap);
+        }
+
+        // A Library written while loading may resolve differently now
+        for (Pair<Library, org.hl7.fhir.r4.model.Library> library : libraryMap.values()) {
+            if (library.getRight() != null && !libraries.contains(getLibraryKey(library.getRight()))) {
+                return generator.apply(libraryMap);
+            }
+        }
+
+        cache.put(measureKey, "libraries", requests);
+        return cache.get(getArtifactKey(measureKey, libraries), artifact, type, () -> generator.apply(libraryMap));
+    }
+
+    // Null if the Measure is not a stored version
+    private static String getMeasureKey(Measure measure) {
+        String measureVersion = getVersionId(measure);
+        if (!measure.getIdElement().hasIdPart() || measureVersion == null) {
+            return null;
+        }
+
+        return "Measure/" + measure.getIdElement().getIdPart() + "/" + measureVersion;
+    }
+
+    // The library references of the Measure and its Libraries, and the includes
+    // of the loaded libraries, as "reference:<reference>" and
+    // "include:<name>[|<version>]"
+    private static List<String> getLibraryRequests(Measure measure,
+            Map<VersionedIdentifier, Pair<Library, org.hl7.fhir.r4.model.Library>> libraryMap) {
+        Set<String> requests = new TreeSet<>();
+        for (CanonicalType reference : measure.getLibrary()) {
+            if (reference.hasValue()) {
+                requests.add(REFERENCE + reference.getValue().replaceFirst("^#", ""));
+            }
+        }
+
+        for (Pair<Library, org.hl7.fhir.r4.model.Library> library : libraryMap.values()) {
+            if (library.getRight() != null) {
+                for (RelatedArtifact artifact : library.getRight().getRelatedArtifact()) {
+                    if (artifact.getType() == RelatedArtifact.RelatedArtifactType.DEPENDSON && artifact.hasResource()) {
+                        requests.add(REFERENCE + artifact.getResource());
+                    }
+                }
+            }
+
+            if (library.getLeft().getIncludes() != null) {
+                for (IncludeDef include : library.getLeft().getIncludes().getDef()) {
+                    requests.add(INCLUDE + include.getPath()
+                            + (include.getVersion() != null ? "|" + include.getVersion() : ""));
+                }
+            }
+        }
+
+        return new ArrayList<>(requests);
+    }
+
+    private static String getArtifactKey(String measureKey, Set<String> libraries) {
+        return libraries != null ? measureKey + "|" + String.join("|", libraries) : null;
+    }
+
+    // The Library each request resolves to, or null if one of them has no id or
+    // versionId
+    private static Set<String> resolveLibraryRequests(List<String> requests,
+            LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
+        Set<String> libraries = new TreeSet<>();
+        for (String request : requests) {
+            org.hl7.fhir.r4.model.Library libraryResource = resolveLibraryRequest(request, libraryResourceProvider);
+            // Libraries from elsewhere are cleared from the cache when they change
+            String library = libraryResource != null ? getLibraryKey(libraryResource) : request;
+            if (library == null) {
+                return null;
+            }
+            libraries.add(library);
+        }
+
+        return libraries;
+    }
+
+    private static org.hl7.fhir.r4.model.Library resolveLibraryRequest(String request,
+            LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
+        try {
+            if (request.startsWith(INCLUDE)) {
+                String[] parts = request.substring(INCLUDE.length()).split("\\|", 2);
+                return libraryResourceProvider.resolveLibraryByName(parts[0], parts.length > 1 ? parts[1] : null);
+            }
+
+            return LibraryHelper.resolveLibraryReference(libraryResourceProvider,
+                    request.substring(REFERENCE.length()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // "Library/<id>/<versionId>", or null if the Library is not a stored version
+    private static String getLibraryKey(org.hl7.fhir.r4.model.Library libraryResource) {
+        String libraryVersion = getVersionId(libraryResource);
+        if (!libraryResource.getIdElement().hasIdPart() || libraryVersion == null) {
+            return null;
+        }
+
+        return "Library/" + libraryResource.getIdElement().getIdPart() + "/" + libraryVersion;
+    }
+
+    private static String getVersionId(Resource resource) {
+        return resource.getIdElement().hasVersionIdPart() ? resource.getIdElement().getVersionIdPart()
+                : resource.getMeta().getVersionId();
     }
 
     private Map<VersionedIdentifier, Pair<Library, org.hl7.fhir.r4.model.Library>> createLibraryMap(Measure measure,
@@ -473,10 +630,11 @@ public class DataRequirementsProvider {
 
     public org.hl7.fhir.r4.model.Library getDataRequirements(Measure measure,
             LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
-        Map<VersionedIdentifier, Pair<Library, org.hl7.fhir.r4.model.Library>> libraryMap = this
-                .createLibraryMap(measure, libraryResourceProvider);
-        return this.getDataRequirements(measure,
-                libraryMap.values().stream().map(Pair::getRight).filter(Objects::nonNull).collect(Collectors.toList()));
+        return this.getArtifact(measure, libraryResourceProvider, "dataRequirements",
+                org.hl7.fhir.r4.model.Library.class, libraryMap -> this.getDataRequirements(measure,
+                        libraryMap.values().stream().map(Pair::getRight).filter(Objects::nonNull)
+                                .collect(Collectors.toList())))
+                .copy();
     }
 
     private org.hl7.fhir.r4.model.Library getDataRequirements(Measure measure,
@@ -5,6 +5,7 @@ import java.io.FileReader;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -16,14 +17,6 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import com.jamesmurty.utils.XMLBuilder2;
-
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.ContactDetail;
@@ -39,6 +32,7 @@ import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.RelatedArtifact;
 import org.hl7.fhir.r4.model.RelatedArtifact.RelatedArtifactType;
 import org.jsoup.Jsoup;
+import org.opencds.cqf.common.helpers.XmlStreamBuilder;
 import org.opencds.cqf.common.providers.InMemoryLibraryResourceProvider;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.tooling.library.r4.NarrativeProvider;
@@ -47,7 +41,6 @@ import org.opencds.cqf.tooling.measure.r4.CqfMeasure;
 import org.opencds.cqf.tooling.measure.r4.TerminologyRef;
 import org.opencds.cqf.tooling.measure.r4.TerminologyRef.TerminologyRefType;
 import org.springframework.stereotype.Component;
-import org.w3c.dom.Document;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
@@ -118,7 +111,17 @@ public class HQMFProvider {
     };
 
     public String generateHQMF(CqfMeasure m) {
-        XMLBuilder2 xml = createQualityMeasureDocumentElement(m);
+        StringWriter writer = new StringWriter();
+        this.writeHQMF(m, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Streams the HQMF document for the given measure to the writer, which is
+     * flushed but left open.
+     */
+    public void writeHQMF(CqfMeasure m, Writer writer) {
+        XmlStreamBuilder xml = createQualityMeasureDocumentElement(m, writer);
         this.addResponsibleParties(xml, m);
         this.addDefinitions(xml, m);
 
@@ -128,15 +131,15 @@ public class HQMFProvider {
         this.addSubjectOfs(xml, m);
         this.addComponentOfs(xml, m);
         this.addComponents(xml, m, primaryLibraryGuid, primaryLibraryName);
-        return writeDocument(xml.getDocument());
+        xml.close();
     }
 
-    private XMLBuilder2 createQualityMeasureDocumentElement(CqfMeasure m) {
+    private XmlStreamBuilder createQualityMeasureDocumentElement(CqfMeasure m, Writer writer) {
         // HQMF expects a unique Id and a version independent Id.
         String id = this.stripHistory(m.getId());
         String setId = this.resolveSetId(m);
 
-        XMLBuilder2 builder = XMLBuilder2.create("QualityMeasureDocument").ns("urn:hl7-org:v3")
+        XmlStreamBuilder builder = XmlStreamBuilder.create(writer, "QualityMeasureDocument").ns("urn:hl7-org:v3")
                 .ns("cql-ext", "urn:hhs-cql:hqmf-n1-extensions:v1")
                 .ns("xsi", "http://www.w3.org/2001/XMLSchema-instance").elem("typeId")
                 .a("extension", "POQM_HD000001UV02").a("root", "2.16.840.1.113883.1.3").up().elem("templateId")
@@ -162,7 +165,7 @@ public class HQMFProvider {
         return m.getName();
     }
 
-    private void addDefinitions(XMLBuilder2 xml, CqfMeasure m) {
+    private void addDefinitions(XmlStreamBuilder xml, CqfMeasure m) {
 
         if (m.hasTerminology()) {
             for (TerminologyRef t : m.getTerminology()) {
@@ -179,13 +182,13 @@ public class HQMFProvider {
         }
     }
 
-    private void addValueSet(XMLBuilder2 xml, TerminologyRef t) {
+    private void addValueSet(XmlStreamBuilder xml, TerminologyRef t) {
         xml.root().elem("definition").elem("valueSet").a("classCode", "OBS").a("moodCode", "DEF").elem("id")
                 .a("root", t.getId()).up().elem("title").a("value", t.getName());
     }
 
-    private void addDirectReferenceCode(XMLBuilder2 xml, CodeTerminologyRef t) {
-        XMLBuilder2 temp = xml.root().elem("definition").elem("cql-ext:code").a("code", t.getId())
+    private void addDirectReferenceCode(XmlStreamBuilder xml, CodeTerminologyRef t) {
+        XmlStreamBuilder temp = xml.root().elem("definition").elem("cql-ext:code").a("code", t.getId())
                 .a("codeSystem", t.getcodeSystemId()).a("codeSystemName", t.getcodeSystemName());
         if (t.getdisplayName() != null) {
             temp.elem("displayName").a("value", t.getdisplayName()).up();
@@ -201,7 +204,7 @@ public class HQMFProvider {
     }
 
     // Returns the name of the primary library once the documents are added.
-    private String addRelatedDocuments(XMLBuilder2 xml, CqfMeasure m, String primaryLibraryGuid) {
+    private String addRelatedDocuments(XmlStreamBuilder xml, CqfMeasure m, String primaryLibraryGuid) {
         String primaryLibraryId = m.getLibrary().get(0).getValue();
         String primaryLibraryName = null;
 
@@ -222,7 +225,7 @@ public class HQMFProvider {
     }
 
     // Returns the random guid assigned to a document
-    private void addRelatedDocument(XMLBuilder2 xml, String name, String guid) {
+    private void addRelatedDocument(XmlStreamBuilder xml, String name, String guid) {
         xml.root().elem("relatedDocument").a("typeCode", "COMP").elem("expressionDocument").elem("id").a("root", guid)
                 .up().elem("text").a("mediaType", "text/cql").elem("reference").a("value", name + ".cql").up()
                 .elem("translation").a("mediaType", "application/elm+xml").elem("reference").a("value", name + ".xml")
@@ -230,7 +233,7 @@ public class HQMFProvider {
                 .a("value", name + ".json");
     }
 
-    private void addControlVariables(XMLBuilder2 xml, CqfMeasure m) {
+    private void addControlVariables(XmlStreamBuilder xml, CqfMeasure m) {
         // TODO: These are parameters?
 
         // Measure Period
@@ -240,7 +243,7 @@ public class HQMFProvider {
         }
     }
 
-    private void addMeasurePeriod(XMLBuilder2 xml, Period p) {
+    private void addMeasurePeriod(XmlStreamBuilder xml, Period p) {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
 
         xml.root().elem("controlVariable").elem("measurePeriod").elem("id").a("extension", "measureperiod")
@@ -264,7 +267,7 @@ public class HQMFProvider {
         return null;
     }
 
-    private void addSubjectOfs(XMLBuilder2 xml, CqfMeasure m) {
+    private void addSubjectOfs(XmlStreamBuilder xml, CqfMeasure m) {
         String codeSystem = "2.16.840.1.113883.5.4";
 
         // TODO: What to do with the NCQA Identifier?
@@ -374,7 +377,7 @@ public class HQMFProvider {
         // elements, the FHIR measure does not.
     }
 
-    private void addGroupMeasureAttributes(XMLBuilder2 xml, String codeSystem, MeasureGroupComponent mgc) {
+    private void addGroupMeasureAttributes(XmlStreamBuilder xml, String codeSystem, MeasureGroupComponent mgc) {
         for (Map.Entry<String, CodeMapping> entry : measurePopulationValueSetMap.entrySet()) {
             String key = entry.getKey();
             MeasureGroupPopulationComponent mgpc = GetPopulationForKey(key, mgc);
@@ -397,51 +400,51 @@ public class HQMFProvider {
         return null;
     }
 
-    private void addMeasureAttributeWithCodeAndTextValue(XMLBuilder2 xml, String code, String codeSystem,
+    private void addMeasureAttributeWithCodeAndTextValue(XmlStreamBuilder xml, String code, String codeSystem,
             String displayName, String mediaType, String value) {
-        XMLBuilder2 temp = this.addMeasureAttribute(xml);
+        XmlStreamBuilder temp = this.addMeasureAttribute(xml);
         this.addMeasureAttributeCode(temp, code, codeSystem, displayName);
         this.addMeasureAttributeValue(temp, mediaType, value, "ED");
     }
 
-    private void addMeasureAttributeWithCodeAndCodeValue(XMLBuilder2 xml, String code, String codeSystem,
+    private void addMeasureAttributeWithCodeAndCodeValue(XmlStreamBuilder xml, String code, String codeSystem,
             String displayName, String valueCode, String valueCodeSystem, String valueDisplayName) {
-        XMLBuilder2 temp = this.addMeasureAttribute(xml);
+        XmlStreamBuilder temp = this.addMeasureAttribute(xml);
         this.addMeasureAttributeCode(temp, code, codeSystem, displayName);
         this.addMeasureAttributeValue(temp, valueCode, valueCodeSystem, "CD", valueDisplayName);
     }
 
-    private void addMeasureAttributeWithNullAndText(XMLBuilder2 xml, String nullFlavor, String originalText,
+    private void addMeasureAttributeWithNullAndText(XmlStreamBuilder xml, String nullFlavor, String originalText,
             String mediaType, String value) {
-        XMLBuilder2 temp = this.addMeasureAttribute(xml);
+        XmlStreamBuilder temp = this.addMeasureAttribute(xml);
         this.addMeasureAttributeCode(temp, nullFlavor, originalText);
         this.addMeasureAttributeValue(temp, mediaType, value, "ED");
     }
 
-    private XMLBuilder2 addMeasureAttribute(XMLBuilder2 xml) {
+    private XmlStreamBuilder addMeasureAttribute(XmlStreamBuilder xml) {
         return xml.root().elem("subjectOf").elem("measureAttribute");
     }
 
-    private void addMeasureAttributeCode(XMLBuilder2 xml, String code, String codeSystem, String displayName) {
+    private void addMeasureAttributeCode(XmlStreamBuilder xml, String code, String codeSystem, String displayName) {
         xml.elem("code").a("code", code).a("codeSystem", codeSystem).elem("displayName").a("value", displayName).up()
                 .up();
     }
 
-    private void addMeasureAttributeCode(XMLBuilder2 xml, String nullFlavor, String originalText) {
+    private void addMeasureAttributeCode(XmlStreamBuilder xml, String nullFlavor, String originalText) {
         xml.elem("code").a("nullFlavor", nullFlavor).elem("originalText").a("value", originalText).up().up();
     }
 
-    private void addMeasureAttributeValue(XMLBuilder2 xml, String code, String codeSystem, String xsiType,
+    private void addMeasureAttributeValue(XmlStreamBuilder xml, String code, String codeSystem, String xsiType,
             String displayName) {
         xml.elem("value").a("code", code).a("codeSystem", codeSystem).a("xsi:type", xsiType).elem("displayName")
                 .a("value", displayName).up().up();
     }
 
-    private void addMeasureAttributeValue(XMLBuilder2 xml, String mediaType, String value, String xsiType) {
+    private void addMeasureAttributeValue(XmlStreamBuilder xml, String mediaType, String value, String xsiType) {
         xml.elem("value").a("mediaType", mediaType).a("value", value).a("xsi:type", xsiType).up();
     }
 
-    private void addComponentOfs(XMLBuilder2 xml, CqfMeasure m) {
+    private void addComponentOfs(XmlStreamBuilder xml, CqfMeasure m) {
         // TODO: Where's the quality measure set? Hedis?
         String qualityMeasureSetId = "a0f96a17-36f0-46d4-bbd5-ad265d81bc95";
 
@@ -449,12 +452,12 @@ public class HQMFProvider {
                 .a("root", qualityMeasureSetId).up().elem("title").a("value", "None");
     }
 
-    private void addComponents(XMLBuilder2 xml, CqfMeasure m, String documentGuid, String documentName) {
+    private void addComponents(XmlStreamBuilder xml, CqfMeasure m, String documentGuid, String documentName) {
         this.addDataCriteriaSection(xml, m);
         this.addPopulationCriteriaSection(xml, m, documentGuid, documentName);
     }
 
-    private void addDataCriteriaSection(XMLBuilder2 xml, CqfMeasure m) {
+    private void addDataCriteriaSection(XmlStreamBuilder xml, CqfMeasure m) {
         this.addDataCriteriaHeader(xml);
 
         // if (m.hasDataCriteria()) {
@@ -465,7 +468,7 @@ public class HQMFProvider {
         // }
     }
 
-    private XMLBuilder2 addDataCriteriaHeader(XMLBuilder2 xml) {
+    private XmlStreamBuilder addDataCriteriaHeader(XmlStreamBuilder xml) {
         return xml.root().elem("component").elem("dataCriteriaSection").elem("templateId").elem("item")
                 .a("extension", "2018-05-01").a("root", "2.16.840.1.113883.10.20.28.2.6").up().up().elem("code")
                 .a("code", "57025-9").a("codeSystem", "2.16.840.1.113883.6.1").up().elem("title")
@@ -475,7 +478,7 @@ public class HQMFProvider {
     // Unlike other functions, this function expects the xml builder to be located
     // at the correct spot. It's also expected to reset the xmlBuilder to the
     // correct spot.
-    // private void addDataCriteriaEntry(XMLBuilder2 xml, String localVariableName,
+    // private void addDataCriteriaEntry(XmlStreamBuilder xml, String localVariableName,
     // String criteriaName, String classCode, String itemExtension, String itemRoot,
     // String idExtension, String idRoot, String code, String codeSystem, String
     // codeSystemName, String codeDisplayName, String title, String statusCode,
@@ -494,12 +497,12 @@ public class HQMFProvider {
     // .elem("value").a("valueSet", valueSet).a("xsi:type", "CD").up().up();
     // }
 
-    private void addPopulationCriteriaSection(XMLBuilder2 xml, CqfMeasure m, String documentGuid, String documentName) {
+    private void addPopulationCriteriaSection(XmlStreamBuilder xml, CqfMeasure m, String documentGuid, String documentName) {
         if (m.hasGroup()) {
             for (int i = 0; i < m.getGroup().size(); i++) {
                 String criteriaName = "PopulationCriteria_" + (i + 1);
                 String criteriaRoot = UUID.randomUUID().toString();
-                XMLBuilder2 readyForComponents = this.addPopulationCriteriaHeader(xml, criteriaName, criteriaRoot);
+                XmlStreamBuilder readyForComponents = this.addPopulationCriteriaHeader(xml, criteriaName, criteriaRoot);
                 MeasureGroupComponent mgc = m.getGroupFirstRep();
                 for (MeasureGroupPopulationComponent mgpc : mgc.getPopulation()) {
                     String key = mgpc.getCode().getCoding().get(0).getCode();
@@ -521,7 +524,7 @@ public class HQMFProvider {
 
     // Unlike other functions, this function expects the xml builder to be located
     // at the correct spot.
-    private void addPopulationCriteriaComponentCriteria(XMLBuilder2 xml, String criteriaName,
+    private void addPopulationCriteriaComponentCriteria(XmlStreamBuilder xml, String criteriaName,
             String criteriaIdExtension, String code, String criteriaReferenceIdExtension,
             String criteriaReferenceIdRoot) {
         xml.elem("component").a("typeCode", "COMP").elem(criteriaName).a("classCode", "OBS").a("moodCode", "EVN")
@@ -534,7 +537,7 @@ public class HQMFProvider {
 
     // Unlike other functions, this function expects the xml builder to be located
     // at the correct spot.
-    private void addPopulationCriteriaComponentSDE(XMLBuilder2 xml, String sdeIdRoot,
+    private void addPopulationCriteriaComponentSDE(XmlStreamBuilder xml, String sdeIdRoot,
             String criteriaReferenceIdExtension, String criteriaReferenceIdRoot) {
         xml.elem("component").a("typeCode", "COMP").elem("cql-ext:supplementalDataElement").elem("id")
                 .a("extension", "Supplemental Data Elements").a("root", sdeIdRoot).up().elem("code").a("code", "SDE")
@@ -544,7 +547,7 @@ public class HQMFProvider {
                 .up();
     }
 
-    private XMLBuilder2 addPopulationCriteriaHeader(XMLBuilder2 xml, String criteriaName, String criteriaRoot) {
+    private XmlStreamBuilder addPopulationCriteriaHeader(XmlStreamBuilder xml, String criteriaName, String criteriaRoot) {
         return xml.root().elem("component").elem("populationCriteriaSection").elem("templateId").elem("item")
                 .a("extension", "2017-08-01").a("root", "2.16.840.1.113883.10.20.28.2.7").up().up().elem("id")
                 .a("extension", criteriaName).a("root", criteriaRoot).up().elem("code").a("code", "57026-7")
@@ -552,7 +555,7 @@ public class HQMFProvider {
                 .up().elem("text").up();
     }
 
-    private void addResponsibleParties(XMLBuilder2 xml, CqfMeasure m) {
+    private void addResponsibleParties(XmlStreamBuilder xml, CqfMeasure m) {
 
         List<ContactDetail> contributors = m.getAuthor();
         if (contributors != null) {
@@ -574,7 +577,7 @@ public class HQMFProvider {
 
     }
 
-    private void addResponsibleParty(XMLBuilder2 xml, String type, String oid, String name) {
+    private void addResponsibleParty(XmlStreamBuilder xml, String type, String oid, String name) {
         xml.root().elem(type).elem("responsibleParty").a("classCode", "ASSIGNED")
                 .elem("representedResponsibleOrganization").a("classCode", "ORG").a("determinerCode", "INSTANCE")
                 .elem("id").elem("item").a("root", oid).up().up().elem("name").elem("item").elem("part")
@@ -582,28 +585,6 @@ public class HQMFProvider {
 
     }
 
-    private String writeDocument(Document d) {
-        try {
-            DOMSource source = new DOMSource(d);
-
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-            transformer.setOutputProperty(OutputKeys.STANDALONE, "yes");
-
-            StringWriter writer = new StringWriter();
-            StreamResult result = new StreamResult(writer);
-
-            transformer.transform(source, result);
-
-            return writer.toString();
-        } catch (Exception e) {
-            return null;
-        }
-    }
 
     // private boolean validateHQMF(String xml) {
     //     try {
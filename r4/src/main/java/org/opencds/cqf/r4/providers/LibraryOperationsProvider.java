@@ -1,41 +1,64 @@
 package org.opencds.cqf.r4.providers;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 import org.apache.commons.lang3.tuple.Pair;
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Endpoint;
+import org.hl7.fhir.r4.model.Group;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Narrative;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Type;
 import org.opencds.cqf.cds.providers.PriorityRetrieveProvider;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CachingLibraryManager;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+import org.opencds.cqf.common.evaluation.LibraryElmCache;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
+import org.opencds.cqf.common.evaluation.MeasureArtifactCache;
+import org.opencds.cqf.common.evaluation.ResourceReadCache;
 import org.opencds.cqf.common.helpers.ClientHelperDos;
 import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 import org.opencds.cqf.common.providers.R4ApelonFhirTerminologyProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.MemoizingRetrieveProvider;
+import org.opencds.cqf.common.retrieve.RetrieveMetrics;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.CqlEngine;
@@ -45,14 +68,18 @@ import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
 import org.opencds.cqf.cql.engine.fhir.retrieve.RestFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.fhir.terminology.R4FhirTerminologyProvider;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.cql.evaluator.engine.retrieve.BundleRetrieveProvider;
 import org.opencds.cqf.tooling.library.r4.NarrativeProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 import org.opencds.cqf.r4.helpers.FhirMeasureBundler;
 import org.opencds.cqf.r4.helpers.LibraryHelper;
+import org.opencds.cqf.r4.helpers.RetrieveMetricsHelper;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.rp.r4.LibraryResourceProvider;
@@ -62,8 +89,10 @@ import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.param.HasParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.UriParam;
@@ -71,20 +100,29 @@ import ca.uhn.fhir.rest.param.UriParam;
 @Component
 public class LibraryOperationsProvider implements LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> {
 
+    private static final Logger logger = LoggerFactory.getLogger(LibraryOperationsProvider.class);
+
     private NarrativeProvider narrativeProvider;
     private DataRequirementsProvider dataRequirementsProvider;
     private LibraryResourceProvider libraryResourceProvider;
     DaoRegistry registry;
     TerminologyProvider defaultTerminologyProvider;
+    private LibraryElmCache libraryElmCache;
+    private ResourceReadCache resourceReadCache;
+    private Cache<String, R4BundleLibrarySourceProvider> bundleLibraryProviders = CacheBuilder.newBuilder()
+            .maximumSize(HapiProperties.getCqlBundleLibraryCacheSize()).build();
 
     @Inject
     public LibraryOperationsProvider(LibraryResourceProvider libraryResourceProvider,
-            NarrativeProvider narrativeProvider, DaoRegistry registry, TerminologyProvider defaultTerminologyProvider) {
+            NarrativeProvider narrativeProvider, DaoRegistry registry, TerminologyProvider defaultTerminologyProvider,
+            LibraryElmCache libraryElmCache, ResourceReadCache resourceReadCache) {
         this.narrativeProvider = narrativeProvider;
         this.dataRequirementsProvider = new DataRequirementsProvider();
         this.libraryResourceProvider = libraryResourceProvider;
         this.registry = registry;
         this.defaultTerminologyProvider = defaultTerminologyProvider;
+        this.libraryElmCache = libraryElmCache;
+        this.resourceReadCache = resourceReadCache;
     }
 
     private ModelManager getModelManager() {
@@ -122,6 +160,28 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
         ModelManager modelManager = this.getModelManager();
         LibraryManager libraryManager = this.getLibraryManager(modelManager);
 
+        this.refreshGeneratedContent(theResource, libraryManager, modelManager);
+
+        return this.libraryResourceProvider.update(theRequest, theResource, theId,
+                theRequestDetails.getConditionalUrl(RestOperationTypeEnum.UPDATE), theRequestDetails);
+    }
+
+    /**
+     * Regenerates the ELM, related artifacts, data requirements and narrative of
+     * the given Library in place, without saving it. Included libraries are
+     * resolved through the shared compiled library cache, so this is safe to
+     * call from several threads at once.
+     */
+    public Library refreshGeneratedContent(Library theResource) {
+        CachingLibraryManager libraryManager = new CachingLibraryManager(CompiledLibraryCache.getInstance());
+        libraryManager.getLibrarySourceLoader().clearProviders();
+        libraryManager.getLibrarySourceLoader().registerProvider(getLibrarySourceProvider());
+
+        return this.refreshGeneratedContent(theResource, libraryManager, libraryManager.getCache().getModelManager());
+    }
+
+    private Library refreshGeneratedContent(Library theResource, LibraryManager libraryManager,
+            ModelManager modelManager) {
         CqlTranslator translator = this.dataRequirementsProvider.getTranslator(theResource, libraryManager,
                 modelManager);
         if (translator.getErrors().size() > 0) {
@@ -139,8 +199,7 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
             // Ignore the exception so the resource still gets updated
         }
 
-        return this.libraryResourceProvider.update(theRequest, theResource, theId,
-                theRequestDetails.getConditionalUrl(RestOperationTypeEnum.UPDATE), theRequestDetails);
+        return theResource;
     }
 
     @Operation(name = "$get-elm", idempotent = true, type = Library.class)
@@ -148,19 +207,21 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
         Library theResource = this.libraryResourceProvider.getDao().read(theId);
         // this.formatCql(theResource);
 
-        ModelManager modelManager = this.getModelManager();
-        LibraryManager libraryManager = this.getLibraryManager(modelManager);
+        String elmFormat = "json".equals(format) ? "json" : "xml";
+        String elm = this.libraryElmCache.getElm(theResource.getIdElement(), elmFormat, () -> {
+            ModelManager modelManager = this.getModelManager();
+            LibraryManager libraryManager = this.getLibraryManager(modelManager);
 
-        String elm = "";
-        CqlTranslator translator = this.dataRequirementsProvider.getTranslator(theResource, libraryManager,
-                modelManager);
-        if (translator != null) {
-            if (format.equals("json")) {
-                elm = translator.toJson();
-            } else {
-                elm = translator.toXml();
+            CqlTranslator translator = this.dataRequirementsProvider.getTranslator(theResource, libraryManager,
+                    modelManager);
+            if (translator == null) {
+                return new LibraryElmCache.Elm("", null);
             }
-        }
+
+            return new LibraryElmCache.Elm(elmFormat.equals("json") ? translator.toJson() : translator.toXml(),
+                    new HashSet<>(libraryManager.getTranslatedLibraries().keySet()));
+        });
+
         Parameters p = new Parameters();
         p.addParameter().setValue(new StringType(elm));
         return p;
@@ -169,15 +230,27 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
     @Operation(name = "$get-narrative", idempotent = true, type = Library.class)
     public Parameters getNarrative(@IdParam IdType theId) {
         Library theResource = this.libraryResourceProvider.getDao().read(theId);
-        Narrative n = this.narrativeProvider.getNarrative(this.libraryResourceProvider.getContext(), theResource);
+
+        // Rendered once per Library version
+        IdType id = theResource.getIdElement();
+        String key = id.hasIdPart() && id.hasVersionIdPart()
+                ? "Library/" + id.getIdPart() + "/" + id.getVersionIdPart()
+                : null;
+        String narrative = MeasureArtifactCache.getInstance().get(key, "narrative", String.class,
+                () -> this.narrativeProvider.getNarrative(this.libraryResourceProvider.getContext(), theResource)
+                        .getDivAsString());
         Parameters p = new Parameters();
-        p.addParameter().setValue(new StringType(n.getDivAsString()));
+        p.addParameter().setValue(new StringType(narrative));
         return p;
     }
 
     // NOTICE: This is trash code that needs to be removed. Don't fix this. It's for
     // a one-off
-    @SuppressWarnings({"unchecked", "rawtypes" })
+    /**
+     * Evaluates the library for one subject, or, given subject ids or Groups,
+     * for each of them on a single engine. When expressions are given, only
+     * those definitions, and the definitions they reference, are evaluated.
+     */
     @Operation(name = "$evaluate", idempotent = true, type = Library.class)
     public Bundle evaluate(@IdParam IdType theId, @OperationParam(name = "patientId") String patientId,
             @OperationParam(name = "periodStart") String periodStart,
@@ -188,97 +261,238 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
             @OperationParam(name = "context") String contextParam,
             @OperationParam(name = "executionResults") String executionResults,
             @OperationParam(name = "parameters") Parameters parameters,
-            @OperationParam(name = "additionalData") Bundle additionalData) {
+            @OperationParam(name = "additionalData") Bundle additionalData,
+            @OperationParam(name = "expression") List<StringType> expression,
+            @OperationParam(name = "subject") List<StringType> subject) {
 
-        if (patientId == null && contextParam != null && contextParam.equals("Patient")) {
+        boolean batch = subject != null && !subject.isEmpty();
+        if (!batch && patientId == null && contextParam != null && contextParam.equals("Patient")) {
             throw new IllegalArgumentException("Must specify a patientId when executing in Patient context.");
         }
 
+        RetrieveMetrics metrics = HapiProperties.getCqlRetrieveSummaryEnabled() ? RetrieveMetrics.startRequest()
+                : null;
+        try {
+            Library theResource = this.getLibrary(theId, additionalData);
+            VersionedIdentifier libraryIdentifier = new VersionedIdentifier().withId(theResource.getName())
+                    .withVersion(theResource.getVersion());
+            CqlEngine engine = this.createEngine(terminologyEndpoint, dataEndpoint, additionalData);
+
+            Map<String, Object> resolvedParameters = getResolvedParameters(parameters, periodStart, periodEnd,
+                    productLine);
+            Set<String> expressions = getExpressions(expression);
+            FhirMeasureBundler bundler = new FhirMeasureBundler();
+
+            if (!batch) {
+                EvaluationResult evalResult = evaluate(engine, libraryIdentifier, expressions,
+                        Pair.of(contextParam != null ? contextParam : "Unspecified", patientId == null ? "null" : patientId),
+                        resolvedParameters);
+
+                List<Resource> results = new ArrayList<>();
+                if (evalResult != null && evalResult.expressionResults != null) {
+                    for (Map.Entry<String, Object> def : evalResult.expressionResults.entrySet()) {
+                        results.add(toParameters(def.getKey(), def.getValue(), executionResults, bundler));
+                    }
+                }
+
+                return this.bundle(results, metrics, bundler);
+            }
+
+            // One entry per subject, with a part per expression
+            String context = contextParam != null ? contextParam : "Patient";
+            List<Resource> results = new ArrayList<>();
+            for (String subjectId : this.getSubjectIds(subject)) {
+                Parameters result = new Parameters();
+                result.setId(subjectId);
+                result.addParameter().setName("subject").setValue(new StringType(context + "/" + subjectId));
+                try {
+                    EvaluationResult evalResult = evaluate(engine, libraryIdentifier, expressions,
+                            Pair.of(context, subjectId), resolvedParameters);
+                    if (evalResult != null && evalResult.expressionResults != null) {
+                        for (Map.Entry<String, Object> def : evalResult.expressionResults.entrySet()) {
+                            Parameters.ParametersParameterComponent part = result.addParameter().setName(def.getKey());
+                            for (Parameters.ParametersParameterComponent component : toParameters(def.getKey(),
+                                    def.getValue(), executionResults, bundler).getParameter()) {
+                                part.addPart(component);
+                            }
+                        }
+                    }
+                } catch (RuntimeException re) {
+                    logger.warn("Unable to evaluate {} for {}/{}: {}", libraryIdentifier.getId(), context, subjectId,
+                            re.getMessage());
+                    String message = re.getMessage() != null ? re.getMessage() : re.getClass().getName();
+                    result.addParameter().setName("error").setValue(new StringType(message));
+                }
+                results.add(result);
+            }
+
+            return this.bundle(results, metrics, bundler);
+        } finally {
+            RetrieveMetrics.endRequest();
+        }
+    }
+
+    // Appends the summary of the request's retrieves, if collected, to the results
+    private Bundle bundle(List<Resource> results, RetrieveMetrics metrics, FhirMeasureBundler bundler) {
+        if (metrics != null) {
+            Parameters summary = new Parameters();
+            summary.setId("retrieve-summary");
+            RetrieveMetricsHelper.addParameters(summary, metrics);
+            results.add(summary);
+        }
+
+        return bundler.bundle(results);
+    }
+
+    // The Library to evaluate, taken from additionalData when it is there
+    Library getLibrary(IdType theId, Bundle additionalData) {
+        if (additionalData != null) {
+            for (BundleEntryComponent entry : additionalData.getEntry()) {
+                if (entry.getResource().fhirType().equals("Library")
+                        && entry.getResource().getIdElement().equals(theId)) {
+                    return (Library) entry.getResource();
+                }
+            }
+        }
+
+        return this.libraryResourceProvider.getDao().read(theId);
+    }
+
+    /**
+     * Creates an engine over the given endpoints, or this server, that resolves
+     * libraries from additionalData before the stored Libraries.
+     */
+    CqlEngine createEngine(Endpoint terminologyEndpoint, Endpoint dataEndpoint, Bundle additionalData) {
         Bundle libraryBundle = new Bundle();
-        Library theResource = null;
         if (additionalData != null) {
             for (BundleEntryComponent entry : additionalData.getEntry()) {
                 if (entry.getResource().fhirType().equals("Library")) {
                     libraryBundle.addEntry(entry);
-                    if (entry.getResource().getIdElement().equals(theId)) {
-                        theResource = (Library) entry.getResource();
-                    }
                 }
             }
         }
 
-        if (theResource == null) {
-            theResource = this.libraryResourceProvider.getDao().read(theId);
+        FhirModelResolver resolver = new R4FhirModelResolver();
+        TerminologyProvider terminologyProvider = this.getTerminologyProvider(resolver, terminologyEndpoint);
+        DataProvider dataProvider = this.getDataProvider(resolver, terminologyProvider, terminologyEndpoint,
+                dataEndpoint, additionalData);
+
+        org.cqframework.cql.cql2elm.LibrarySourceProvider bundleLibraryProvider = getBundleLibraryProvider(libraryBundle);
+        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(bundleLibraryProvider);
+        LibraryResolutionProvider<Library> provider = this.getLibraryResourceProvider();
+        libraryLoader.getLibraryManager().getLibrarySourceLoader().registerProvider(
+            new LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment>(provider,
+                    x -> x.getContent(), x -> x.getContentType(), x -> x.getData()));
+
+        return new CqlEngine(libraryLoader, Collections.singletonMap("http://hl7.org/fhir", dataProvider), terminologyProvider);
+    }
+
+    static EvaluationResult evaluate(CqlEngine engine, VersionedIdentifier libraryIdentifier,
+            Set<String> expressions, Pair<String, Object> contextParameter, Map<String, Object> parameters) {
+        if (expressions == null) {
+            return engine.evaluate(libraryIdentifier, contextParameter, parameters);
         }
 
-        VersionedIdentifier libraryIdentifier = new VersionedIdentifier().withId(theResource.getName())
-                .withVersion(theResource.getVersion());
+        return engine.evaluate(libraryIdentifier, expressions, contextParameter, parameters);
+    }
 
-        FhirModelResolver resolver = new R4FhirModelResolver();
-        TerminologyProvider terminologyProvider;
+    // Null if every expression should be evaluated
+    static Set<String> getExpressions(List<StringType> expression) {
+        if (expression == null || expression.isEmpty()) {
+            return null;
+        }
 
-        if (terminologyEndpoint != null) {
-            IGenericClient client = ClientHelperDos.getClient(resolver.getFhirContext(), terminologyEndpoint);
-            if (terminologyEndpoint.getAddress().contains("apelon")) {
-                terminologyProvider = new R4ApelonFhirTerminologyProvider(client);
-            } else {
-                terminologyProvider = new R4FhirTerminologyProvider(client);
+        Set<String> expressions = new LinkedHashSet<>();
+        for (StringType name : expression) {
+            if (name.hasValue()) {
+                expressions.add(name.getValue());
             }
-        } else {
-            terminologyProvider = this.defaultTerminologyProvider;
         }
-        
-        DataProvider dataProvider;
-        if (dataEndpoint != null) {
-            IGenericClient client = ClientHelperDos.getClient(resolver.getFhirContext(), dataEndpoint);
-            RestFhirRetrieveProvider retriever = new RestFhirRetrieveProvider(new SearchParameterResolver(resolver.getFhirContext()), client);
-            retriever.setTerminologyProvider(terminologyProvider);
-            if (terminologyEndpoint == null ||(terminologyEndpoint != null && !terminologyEndpoint.getAddress().equals(dataEndpoint.getAddress()))) {
-                retriever.setExpandValueSets(true);
+
+        return expressions.isEmpty() ? null : expressions;
+    }
+
+    // Patient ids, and the Patient members of Groups, in order and without duplicates
+    List<String> getSubjectIds(List<StringType> subject) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (StringType reference : subject) {
+            if (!reference.hasValue()) {
+                continue;
             }
 
-            if (additionalData != null) {
-                BundleRetrieveProvider bundleProvider = new BundleRetrieveProvider(resolver.getFhirContext(), additionalData);
-                bundleProvider.setTerminologyProvider(terminologyProvider);
-                PriorityRetrieveProvider priorityProvider = new PriorityRetrieveProvider(bundleProvider, retriever);
-                dataProvider = new CompositeDataProvider(resolver, priorityProvider);
+            IdType id = new IdType(reference.getValue());
+            if (!"Group".equals(id.getResourceType())) {
+                ids.add(id.getIdPart());
+                continue;
             }
-            else
-            {
-                dataProvider = new CompositeDataProvider(resolver, retriever);
+
+            Group group = this.registry.getResourceDao(Group.class).read(id);
+            for (Group.GroupMemberComponent member : group.getMember()) {
+                IIdType entity = member.getEntity().getReferenceElement();
+                if (!member.getInactive() && "Patient".equals(entity.getResourceType())) {
+                    ids.add(entity.getIdPart());
+                }
             }
+        }
+
+        return new ArrayList<>(ids);
+    }
+
+    // The Patient members of the Group, as a search that is read a page at a time.
+    // The member search parameter does not record inactive flags, so unlike
+    // getSubjectIds this includes inactive members.
+    IBundleProvider searchGroupMembers(IIdType groupId) {
+        SearchParameterMap map = new SearchParameterMap();
+        map.add("_has", new HasParam("Group", "member", "_id", groupId.getIdPart()));
+        return this.registry.getResourceDao(Patient.class).search(map);
+    }
+
+    private TerminologyProvider getTerminologyProvider(FhirModelResolver resolver, Endpoint terminologyEndpoint) {
+        if (terminologyEndpoint == null) {
+            return this.defaultTerminologyProvider;
+        }
 
-            
+        IGenericClient client = ClientHelperDos.getClient(resolver.getFhirContext(), terminologyEndpoint);
+        if (terminologyEndpoint.getAddress().contains("apelon")) {
+            return new R4ApelonFhirTerminologyProvider(client);
+        }
+
+        return new R4FhirTerminologyProvider(client);
+    }
+
+    private DataProvider getDataProvider(FhirModelResolver resolver, TerminologyProvider terminologyProvider,
+            Endpoint terminologyEndpoint, Endpoint dataEndpoint, Bundle additionalData) {
+        RetrieveProvider retriever;
+        if (dataEndpoint != null) {
+            IGenericClient client = ClientHelperDos.getClient(resolver.getFhirContext(), dataEndpoint);
+            RestFhirRetrieveProvider restRetriever = new RestFhirRetrieveProvider(new SearchParameterResolver(resolver.getFhirContext()), client);
+            restRetriever.setTerminologyProvider(terminologyProvider);
+            if (terminologyEndpoint == null ||(terminologyEndpoint != null && !terminologyEndpoint.getAddress().equals(dataEndpoint.getAddress()))) {
+                restRetriever.setExpandValueSets(true);
+            }
+            retriever = restRetriever;
         } else {
-            JpaFhirRetrieveProvider retriever = new JpaFhirRetrieveProvider(this.registry,
+            JpaFhirRetrieveProvider jpaRetriever = new JpaFhirRetrieveProvider(this.registry,
                     new SearchParameterResolver(resolver.getFhirContext()));
-            retriever.setTerminologyProvider(terminologyProvider);
+            jpaRetriever.setTerminologyProvider(terminologyProvider);
             // Assume it's a different server, therefore need to expand.
             if (terminologyEndpoint != null) {
-                retriever.setExpandValueSets(true);
-            }
-
-            if (additionalData != null) {                
-                BundleRetrieveProvider bundleProvider = new BundleRetrieveProvider(resolver.getFhirContext(), additionalData);
-                bundleProvider.setTerminologyProvider(terminologyProvider);
-                PriorityRetrieveProvider priorityProvider = new PriorityRetrieveProvider(bundleProvider, retriever);
-                dataProvider = new CompositeDataProvider(resolver, priorityProvider);
-            }
-            else
-            {
-                dataProvider = new CompositeDataProvider(resolver, retriever);
+                jpaRetriever.setExpandValueSets(true);
             }
+            retriever = jpaRetriever;
         }
 
-        org.cqframework.cql.cql2elm.LibrarySourceProvider bundleLibraryProvider = new R4BundleLibrarySourceProvider(libraryBundle);
-        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(bundleLibraryProvider);
-        LibraryResolutionProvider<Library> provider = this.getLibraryResourceProvider();
-        libraryLoader.getLibraryManager().getLibrarySourceLoader().registerProvider(
-            new LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment>(provider,
-                    x -> x.getContent(), x -> x.getContentType(), x -> x.getData()));
+        if (additionalData != null) {
+            BundleRetrieveProvider bundleProvider = new BundleRetrieveProvider(resolver.getFhirContext(), additionalData);
+            bundleProvider.setTerminologyProvider(terminologyProvider);
+            retriever = new PriorityRetrieveProvider(bundleProvider, retriever);
+        }
 
-        CqlEngine engine = new CqlEngine(libraryLoader, Collections.singletonMap("http://hl7.org/fhir", dataProvider), terminologyProvider);
+        return new CompositeDataProvider(resolver, new MemoizingRetrieveProvider(retriever));
+    }
 
+    static Map<String, Object> getResolvedParameters(Parameters parameters, String periodStart,
+            String periodEnd, String productLine) {
         Map<String, Object> resolvedParameters = new HashMap<>();
 
         if (parameters != null) {
@@ -301,73 +515,112 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
             resolvedParameters.put("Product Line", productLine);
         }
 
-        EvaluationResult evalResult = engine.evaluate(libraryIdentifier,
-                Pair.of(contextParam != null ? contextParam : "Unspecified", patientId == null ? "null" : patientId),
-                resolvedParameters);
-
-        List<Resource> results = new ArrayList<>();
-        FhirMeasureBundler bundler = new FhirMeasureBundler();
-
-        if (evalResult != null && evalResult.expressionResults != null) {
-            for (Map.Entry<String, Object> def : evalResult.expressionResults.entrySet()) {
+        return resolvedParameters;
+    }
 
-                Parameters result = new Parameters();
+    @SuppressWarnings({"unchecked", "rawtypes" })
+    Parameters toParameters(String name, Object res, String executionResults, FhirMeasureBundler bundler) {
+        Parameters result = new Parameters();
 
-                try {
-                    result.setId(def.getKey());
-                    Object res = def.getValue();
-                    // String location = String.format("[%d:%d]",
-                    // locations.get(def.getName()).get(0),
-                    // locations.get(def.getName()).get(1));
-                    // result.addParameter().setName("location").setValue(new StringType(location));
-
-                    // Object res = def instanceof org.cqframework.cql.elm.execution.FunctionDef
-                    // ? "Definition successfully validated"
-                    // : def.getExpression().evaluate(context);
-
-                    if (res == null) {
-                        result.addParameter().setName("value").setValue(new StringType("null"));
-                    } else if (res instanceof List<?>) {
-                        if (((List<?>) res).size() > 0 && ((List<?>) res).get(0) instanceof Resource) {
-                            if (executionResults != null && executionResults.equals("Summary")) {
-                                result.addParameter().setName("value")
-                                        .setValue(new StringType(((Resource) ((List<?>) res).get(0)).getIdElement()
-                                                .getResourceType() + "/"
-                                                + ((Resource) ((List<?>) res).get(0)).getIdElement().getIdPart()));
-                            } else {
-                                result.addParameter().setName("value").setResource(bundler.bundle((Iterable<Resource>) res));
-                            }
-                        } else {
-                            result.addParameter().setName("value").setValue(new StringType(res.toString()));
-                        }
-                    } else if (res instanceof Iterable) {
-                        result.addParameter().setName("value").setResource(bundler.bundle((Iterable<Resource>) res));
-                    } else if (res instanceof Resource) {
-                        if (executionResults != null && executionResults.equals("Summary")) {
-                            result.addParameter().setName("value")
-                                    .setValue(new StringType(((Resource) res).getIdElement().getResourceType() + "/"
-                                            + ((Resource) res).getIdElement().getIdPart()));
-                        } else {
-                            result.addParameter().setName("value").setResource((Resource) res);
-                        }
-                    } else if (res instanceof Type) {
-                        result.addParameter().setName("value").setValue((Type) res);
+        try {
+            result.setId(name);
+            // String location = String.format("[%d:%d]",
+            // locations.get(def.getName()).get(0),
+            // locations.get(def.getName()).get(1));
+            // result.addParameter().setName("location").setValue(new StringType(location));
+
+            // Object res = def instanceof org.cqframework.cql.elm.execution.FunctionDef
+            // ? "Definition successfully validated"
+            // : def.getExpression().evaluate(context);
+
+            if (res == null) {
+                result.addParameter().setName("value").setValue(new StringType("null"));
+            } else if (res instanceof List<?>) {
+                if (((List<?>) res).size() > 0 && ((List<?>) res).get(0) instanceof Resource) {
+                    if (executionResults != null && executionResults.equals("Summary")) {
+                        result.addParameter().setName("value")
+                                .setValue(new StringType(((Resource) ((List<?>) res).get(0)).getIdElement()
+                                        .getResourceType() + "/"
+                                        + ((Resource) ((List<?>) res).get(0)).getIdElement().getIdPart()));
                     } else {
-                        result.addParameter().setName("value").setValue(new StringType(res.toString()));
+                        result.addParameter().setName("value").setResource(bundler.bundle((Iterable<Resource>) res));
                     }
+                } else {
+                    result.addParameter().setName("value").setValue(new StringType(res.toString()));
+                }
+            } else if (res instanceof Iterable) {
+                result.addParameter().setName("value").setResource(bundler.bundle((Iterable<Resource>) res));
+            } else if (res instanceof Resource) {
+                if (executionResults != null && executionResults.equals("Summary")) {
+                    result.addParameter().setName("value")
+                            .setValue(new StringType(((Resource) res).getIdElement().getResourceType() + "/"
+                                    + ((Resource) res).getIdElement().getIdPart()));
+                } else {
+                    result.addParameter().setName("value").setResource((Resource) res);
+                }
+            } else if (res instanceof Type) {
+                result.addParameter().setName("value").setValue((Type) res);
+            } else {
+                result.addParameter().setName("value").setValue(new StringType(res.toString()));
+            }
 
-                    result.addParameter().setName("resultType").setValue(new StringType(resolveType(res)));
-                } catch (RuntimeException re) {
-                    re.printStackTrace();
+            result.addParameter().setName("resultType").setValue(new StringType(resolveType(res)));
+        } catch (RuntimeException re) {
+            re.printStackTrace();
 
-                    String message = re.getMessage() != null ? re.getMessage() : re.getClass().getName();
-                    result.addParameter().setName("error").setValue(new StringType(message));
+            String message = re.getMessage() != null ? re.getMessage() : re.getClass().getName();
+            result.addParameter().setName("error").setValue(new StringType(message));
+        }
+
+        return result;
+    }
+
+    // Bundles with the same Libraries share one indexed provider, and through it
+    // the compiled library cache
+    private R4BundleLibrarySourceProvider getBundleLibraryProvider(Bundle libraryBundle) {
+        try {
+            return this.bundleLibraryProviders.get(getBundleLibraryKey(libraryBundle),
+                    () -> new R4BundleLibrarySourceProvider(libraryBundle));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // A SHA-256 of the identity and content of each Library in the bundle, so a
+    // bundle is only shared when its CQL and ELM are the same
+    private static String getBundleLibraryKey(Bundle libraryBundle) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        if (libraryBundle != null) {
+            for (BundleEntryComponent entry : libraryBundle.getEntry()) {
+                if (!entry.hasResource() || !entry.getResource().fhirType().equals("Library")) {
+                    continue;
+                }
+
+                Library library = (Library) entry.getResource();
+                putString(hasher, library.getIdElement().getIdPart());
+                putString(hasher, library.getName());
+                putString(hasher, library.getUrl());
+                putString(hasher, library.getVersion());
+                hasher.putInt(library.getContent().size());
+                for (Attachment content : library.getContent()) {
+                    putString(hasher, content.getContentType());
+                    putString(hasher, content.getUrl());
+                    byte[] data = content.hasData() ? content.getData() : new byte[0];
+                    hasher.putInt(data.length).putBytes(data);
                 }
-                results.add(result);
             }
         }
 
-        return bundler.bundle(results);
+        return hasher.hash().toString();
+    }
+
+    // Length-prefixed, so adjacent values can't run together
+    private static void putString(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+        }
     }
 
     // TODO: Figure out if we should throw an exception or something here.
@@ -379,7 +632,7 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
     @Override
     public Library resolveLibraryById(String libraryId) {
         try {
-            return this.libraryResourceProvider.getDao().read(new IdType(libraryId));
+            return this.resourceReadCache.read(this.libraryResourceProvider.getDao(), new IdType(libraryId));
         } catch (Exception e) {
             throw new IllegalArgumentException(String.format("Could not resolve library id %s", libraryId));
         }
@@ -0,0 +1,51 @@
+package org.opencds.cqf.r4.providers;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+import org.opencds.cqf.common.evaluation.LibraryElmCache;
+import org.opencds.cqf.common.evaluation.MeasureArtifactCache;
+import org.opencds.cqf.common.evaluation.ResourceReadCache;
+import org.opencds.cqf.common.retrieve.RetrieveMetrics;
+import org.opencds.cqf.r4.helpers.RetrieveMetricsHelper;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+
+/**
+ * Reports server-wide evaluation metrics: cache sizes, resource read cache
+ * hits and misses, and retrieve metrics per resource type since startup.
+ * Counters are reported as decimals, as they outgrow a FHIR integer.
+ */
+@Component
+public class MetricsProvider {
+
+    private ResourceReadCache resourceReadCache;
+    private LibraryElmCache libraryElmCache;
+
+    @Inject
+    public MetricsProvider(ResourceReadCache resourceReadCache, LibraryElmCache libraryElmCache) {
+        this.resourceReadCache = resourceReadCache;
+        this.libraryElmCache = libraryElmCache;
+    }
+
+    @Operation(name = "$metrics", idempotent = true)
+    public Parameters metrics() {
+        Parameters p = new Parameters();
+        p.addParameter().setName("compiledLibraries")
+                .setValue(new DecimalType(CompiledLibraryCache.getInstance().size()));
+        p.addParameter().setName("libraryElmEntries").setValue(new DecimalType(this.libraryElmCache.size()));
+        p.addParameter().setName("measureArtifactEntries")
+                .setValue(new DecimalType(MeasureArtifactCache.getInstance().size()));
+        p.addParameter().setName("resourceCacheEntries").setValue(new DecimalType(this.resourceReadCache.size()));
+        p.addParameter().setName("resourceCacheHits").setValue(new DecimalType(this.resourceReadCache.getHits()));
+        p.addParameter().setName("resourceCacheMisses")
+                .setValue(new DecimalType(this.resourceReadCache.getMisses()));
+        p.addParameter().setName("resourceCacheHitRate")
+                .setValue(new DecimalType(this.resourceReadCache.getHitRate()));
+        RetrieveMetricsHelper.addParameters(p, RetrieveMetrics.getServerMetrics());
+        return p;
+    }
+}
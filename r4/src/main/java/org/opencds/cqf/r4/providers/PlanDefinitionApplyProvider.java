@@ -23,6 +23,7 @@ import org.hl7.fhir.r4.model.RequestGroup;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.ResourceReadCache;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
@@ -58,6 +59,7 @@ public class PlanDefinitionApplyProvider {
 
     private final IFhirResourceDao<PlanDefinition> planDefinitionDao;
     private final IFhirResourceDao<ActivityDefinition> activityDefinitionDao;
+    private final ResourceReadCache resourceReadCache;
 
     private final FhirContext fhirContext;
 
@@ -67,8 +69,10 @@ public class PlanDefinitionApplyProvider {
     public PlanDefinitionApplyProvider(FhirContext fhirContext,
             ActivityDefinitionApplyProvider activityDefinitionApplyProvider,
             IFhirResourceDao<PlanDefinition> planDefinitionDao,
-            IFhirResourceDao<ActivityDefinition> activityDefinitionDao, CqlExecutionProvider executionProvider) {
+            IFhirResourceDao<ActivityDefinition> activityDefinitionDao, CqlExecutionProvider executionProvider,
+            ResourceReadCache resourceReadCache) {
         this.executionProvider = executionProvider;
+        this.resourceReadCache = resourceReadCache;
         this.modelResolver = new R4FhirModelResolver();
         this.activityDefinitionApplyProvider = activityDefinitionApplyProvider;
         this.planDefinitionDao = planDefinitionDao;
@@ -406,7 +410,8 @@ public class PlanDefinitionApplyProvider {
                     }
                     if (action.hasDefinition()) {
                         if (action.getDefinitionCanonicalType().getValue().contains("ActivityDefinition")) {
-                            ActivityDefinition activityDefinition = this.activityDefinitionDao.read(
+                            ActivityDefinition activityDefinition = this.resourceReadCache.read(
+                                    this.activityDefinitionDao,
                                     new IdType("ActivityDefinition", action.getDefinitionCanonicalType().getId()));
                             if (activityDefinition.hasDescription()) {
                                 actionBuilder.buildDescripition(activityDefinition.getDescription());
@@ -2,23 +2,46 @@ package org.opencds.cqf.r4.providers;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.opencds.cqf.common.providers.InMemoryLibraryResourceProvider;
 
+/**
+ * Serves library source from the Libraries in a Bundle. The Libraries are
+ * indexed once, so an instance can be shared between requests that supply the
+ * same Bundle.
+ */
 public class R4BundleLibrarySourceProvider extends VersionComparingLibrarySourceProvider  {
 
-    Bundle bundle;
+    private InMemoryLibraryResourceProvider<Library> libraries;
+
     public R4BundleLibrarySourceProvider(Bundle bundle) {
-        this.bundle = bundle;
+        List<Library> bundleLibraries = new ArrayList<>();
+        if (bundle != null) {
+            for (BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.hasResource() && entry.getResource().fhirType().equals("Library")) {
+                    bundleLibraries.add((Library) entry.getResource());
+                }
+            }
+        }
+
+        this.libraries = new InMemoryLibraryResourceProvider<>(bundleLibraries, x -> x.getIdElement().getIdPart(),
+                x -> x.getName(), x -> x.getVersion(), x -> x.getUrl());
+    }
+
+    public InMemoryLibraryResourceProvider<Library> getLibraries() {
+        return this.libraries;
     }
 
     @Override
     public InputStream getLibrarySource(VersionedIdentifier versionedIdentifier) {
         Objects.requireNonNull(versionedIdentifier, "versionedIdentifier can not be null.");
-        
+
         Library library = this.getLibrary(versionedIdentifier.getId(), versionedIdentifier.getVersion());
         if (library == null ){
             return null;
@@ -28,18 +51,11 @@ public class R4BundleLibrarySourceProvider extends VersionComparingLibrarySource
     }
 
     public Library getLibrary(String name, String version) {
-        if (bundle != null) {
-            Library theResource = null;
-            for (BundleEntryComponent entry : bundle.getEntry()) {
-                if (entry.getResource().fhirType().equals("Library")) {
-                    theResource = (Library)entry.getResource();
-                    if (theResource.getName().equals(name) && theResource.getVersion().equals(version)) {
-                        return theResource;
-                    }
-                }
-            }
+        try {
+            return this.libraries.resolveLibraryByName(name, version);
+        } catch (IllegalArgumentException e) {
+            return null;
         }
-        return null;
     }
 
     private InputStream getCqlStream(Library library) {
@@ -55,4 +71,4 @@ public class R4BundleLibrarySourceProvider extends VersionComparingLibrarySource
 
         return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,116 @@
+package org.opencds.cqf.r4.providers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.LibraryLoader;
+import org.opencds.cqf.common.evaluation.LibraryPrecompiler;
+import org.opencds.cqf.common.providers.LibraryResolutionProvider;
+import org.opencds.cqf.r4.helpers.LibraryHelper;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+/**
+ * Reports whether the server is ready to take traffic. When library
+ * precompilation is enabled, the server is not ready until all stored logic
+ * Libraries have been compiled into the shared library cache.
+ */
+@Component
+public class ReadinessProvider {
+
+    private IFhirResourceDao<Library> libraryDao;
+    private LibraryResolutionProvider<Library> libraryResolutionProvider;
+    private LibraryPrecompiler precompiler;
+
+    @Inject
+    public ReadinessProvider(IFhirResourceDao<Library> libraryDao,
+            LibraryResolutionProvider<Library> libraryResolutionProvider) {
+        this.libraryDao = libraryDao;
+        this.libraryResolutionProvider = libraryResolutionProvider;
+        this.precompiler = new LibraryPrecompiler(HapiProperties.getCqlPrecompileThreads());
+    }
+
+    public void precompileLibraries() {
+        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        this.precompiler.start(this::getLibraryIdentifiers,
+                libraryLoader.getLibraryManager().getLibrarySourceLoader());
+    }
+
+    @Operation(name = "$readiness", idempotent = true)
+    public Parameters readiness() {
+        if (HapiProperties.getCqlPrecompileEnabled() && !this.precompiler.isReady()) {
+            throw new UnclassifiedServerFailureException(503,
+                    String.format("Library precompilation in progress: %d of %d libraries compiled",
+                            this.precompiler.getCompiled() + this.precompiler.getFailed(),
+                            this.precompiler.getTotal()));
+        }
+
+        Parameters p = new Parameters();
+        p.addParameter().setName("ready").setValue(new BooleanType(true));
+        p.addParameter().setName("precompileStatus").setValue(new StringType(this.precompiler.getState().name()));
+        p.addParameter().setName("librariesTotal").setValue(new IntegerType(this.precompiler.getTotal()));
+        p.addParameter().setName("librariesCompiled").setValue(new IntegerType(this.precompiler.getCompiled()));
+        p.addParameter().setName("librariesFailed").setValue(new IntegerType(this.precompiler.getFailed()));
+        p.addParameter().setName("elapsedMillis").setValue(new DecimalType(this.precompiler.getElapsedMillis()));
+        return p;
+    }
+
+    private List<VersionedIdentifier> getLibraryIdentifiers() {
+        SearchParameterMap map = new SearchParameterMap();
+        map.setLoadSynchronous(true);
+
+        List<String> statuses = HapiProperties.getCqlPrecompileStatus();
+        if (!statuses.isEmpty()) {
+            TokenOrListParam status = new TokenOrListParam();
+            for (String code : statuses) {
+                status.addOr(new TokenParam(code));
+            }
+            map.add("status", status);
+        }
+
+        List<String> tags = HapiProperties.getCqlPrecompileTags();
+        if (!tags.isEmpty()) {
+            TokenOrListParam tag = new TokenOrListParam();
+            for (String token : tags) {
+                String[] parts = token.split("\\|", 2);
+                tag.addOr(parts.length > 1 ? new TokenParam(parts[0], parts[1]) : new TokenParam(token));
+            }
+            map.add("_tag", tag);
+        }
+
+        List<VersionedIdentifier> libraryIdentifiers = new ArrayList<>();
+        IBundleProvider bundleProvider = this.libraryDao.search(map);
+        Integer size = bundleProvider.size();
+        if (size == null || size == 0) {
+            return libraryIdentifiers;
+        }
+
+        for (IBaseResource resource : bundleProvider.getResources(0, size)) {
+            Library library = (Library) resource;
+            if (library.hasName() && LibraryHelper.isLogicLibrary(library)) {
+                libraryIdentifiers.add(
+                        new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()));
+            }
+        }
+
+        return libraryIdentifiers;
+    }
+}
@@ -6,10 +6,21 @@ import java.util.List;
 import javax.servlet.ServletException;
 
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Meta;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+import org.opencds.cqf.common.evaluation.ExpressionLibraryCache;
+import org.opencds.cqf.common.evaluation.LibraryDirectoryListener;
+import org.opencds.cqf.common.evaluation.LibraryElmCache;
+import org.opencds.cqf.common.evaluation.MeasureArtifactCache;
+import org.opencds.cqf.common.providers.DirectoryLibrarySourceProvider;
+import org.opencds.cqf.common.providers.LibraryResolutionProvider;
+import org.opencds.cqf.r4.helpers.LibraryHelper;
+import org.opencds.cqf.r4.providers.AsyncEvaluationProvider;
 import org.opencds.cqf.r4.providers.CqfRulerJpaConformanceProviderR4;
 import org.opencds.cqf.r4.providers.OAuthProvider;
+import org.opencds.cqf.r4.providers.ReadinessProvider;
 import org.opencds.cqf.tooling.measure.r4.CodeTerminologyRef;
 import org.opencds.cqf.tooling.measure.r4.CqfMeasure;
 import org.opencds.cqf.tooling.measure.r4.PopulationCriteriaMap;
@@ -80,6 +91,23 @@ public class BaseServlet extends RestfulServer {
 
         List<Class<?>> operationsProviders = appCtx.getBean("myOperationProvidersR4", List.class);
         operationsProviders.forEach(x -> registerProvider(appCtx.getBean(x)));
+        // Handles DELETE of the job status URL, which operations can't accept
+        registerInterceptor(appCtx.getBean(AsyncEvaluationProvider.class));
+
+        if (HapiProperties.getCqlPrecompileEnabled()) {
+            appCtx.getBean(ReadinessProvider.class).precompileLibraries();
+        }
+
+        DirectoryLibrarySourceProvider libraryDirectory = CompiledLibraryCache.getInstance().getLibraryDirectory();
+        if (libraryDirectory != null) {
+            LibraryResolutionProvider<Library> libraryResolutionProvider = (LibraryResolutionProvider<Library>) appCtx
+                    .getBean(LibraryResolutionProvider.class);
+            libraryDirectory.addListener(new LibraryDirectoryListener(
+                    () -> LibraryHelper.createLibraryLoader(libraryResolutionProvider).getLibraryManager()
+                            .getLibrarySourceLoader(),
+                    MeasureArtifactCache.getInstance()::clear, appCtx.getBean(LibraryElmCache.class)::clear,
+                    appCtx.getBean(ExpressionLibraryCache.class)::clear));
+        }
 
         if(HapiProperties.getOAuthEnabled()) {
             OAuthProvider oauthProvider = new OAuthProvider(this, systemDao, daoConfig, searchParamRegistry, validationSupport);
@@ -38,6 +38,7 @@ import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.exceptions.InvalidRequestException;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.MemoizingRetrieveProvider;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.debug.DebugMap;
 import org.opencds.cqf.cql.engine.exception.CqlException;
@@ -156,7 +157,8 @@ public class CdsHooksServlet extends HttpServlet {
                     libraryResolutionProvider);
 
             R4FhirModelResolver resolver = new R4FhirModelResolver();
-            CompositeDataProvider provider = new CompositeDataProvider(resolver, fhirRetrieveProvider);
+            CompositeDataProvider provider = new CompositeDataProvider(resolver,
+                    new MemoizingRetrieveProvider(fhirRetrieveProvider));
 
             Context context = new Context(library);
 
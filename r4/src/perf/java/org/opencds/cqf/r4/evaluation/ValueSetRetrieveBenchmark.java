@@ -0,0 +1,149 @@
+package org.opencds.cqf.r4.evaluation;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
+import org.opencds.cqf.common.config.FhirServerConfig;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.r4.config.FhirServerConfigR4;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.term.api.ITermReadSvc;
+
+/**
+ * Compares the two cql.retrieve.valueset.mode settings on a large value set:
+ * expand, which searches for every code of the expanded value set, and in,
+ * which searches once with code:in against the pre-expanded value set.
+ *
+ * Starts the R4 server configuration on an in-memory H2 database, stores a
+ * value set of VALUE_SET_SIZE codes and Observations for PATIENTS patients,
+ * some coded from the value set, then times one value set retrieve per
+ * patient in each mode. Both modes must return the same Observations.
+ *
+ * Run with:
+ *
+ * <pre>
+ * mvn -P perf -pl r4 -am install -DskipTests
+ * mvn -P perf -pl r4 test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.opencds.cqf.r4.evaluation.ValueSetRetrieveBenchmark
+ * </pre>
+ */
+public class ValueSetRetrieveBenchmark {
+
+    private static final String VALUE_SET_URL = "http://example.org/fhir/ValueSet/benchmark";
+    private static final String SYSTEM = "http://example.org/fhir/CodeSystem/benchmark";
+    private static final String OTHER_SYSTEM = "http://example.org/fhir/CodeSystem/other";
+
+    private static final int VALUE_SET_SIZE = 5000;
+    private static final int PATIENTS = 200;
+    private static final int OBSERVATIONS_PER_PATIENT = 20;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        HapiProperties.setProperty("datasource.url", "jdbc:h2:mem:valueset-benchmark");
+        HapiProperties.setProperty("cql.retrieve.valueset.mode", "in");
+
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(
+                FhirServerConfig.class, FhirServerConfigR4.class)) {
+            FhirContext fhirContext = context.getBean(FhirContext.class);
+            DaoRegistry registry = context.getBean(DaoRegistry.class);
+            TerminologyProvider terminologyProvider = context.getBean(TerminologyProvider.class);
+
+            load(registry);
+            context.getBean(ITermReadSvc.class).preExpandDeferredValueSetsToTerminologyTables();
+
+            JpaFhirRetrieveProvider expand = new JpaFhirRetrieveProvider(registry,
+                    new SearchParameterResolver(fhirContext));
+            expand.setTerminologyProvider(terminologyProvider);
+            expand.setExpandValueSets(true);
+
+            JpaFhirRetrieveProvider in = new JpaFhirRetrieveProvider(registry,
+                    new SearchParameterResolver(fhirContext));
+            in.setTerminologyProvider(terminologyProvider);
+            in.setExpandValueSets(false);
+
+            // Warm up, and check that both modes agree
+            int expandCount = run(expand);
+            int inCount = run(in);
+            if (expandCount != inCount) {
+                throw new IllegalStateException(
+                        String.format("expand retrieved %d Observations, in retrieved %d", expandCount, inCount));
+            }
+
+            System.out.println(String.format("%d codes, %d patients, %d matching Observations", VALUE_SET_SIZE,
+                    PATIENTS, expandCount));
+            for (int round = 1; round <= ROUNDS; round++) {
+                System.out.println(String.format("round %d: expand %6.2f ms/retrieve, in %6.2f ms/retrieve", round,
+                        time(expand), time(in)));
+            }
+        }
+    }
+
+    // Stores the value set, and Observations of which every other one is coded from it
+    private static void load(DaoRegistry registry) {
+        ValueSet valueSet = new ValueSet();
+        valueSet.setId("benchmark");
+        valueSet.setUrl(VALUE_SET_URL);
+        valueSet.setStatus(PublicationStatus.ACTIVE);
+        ConceptSetComponent include = valueSet.getCompose().addInclude().setSystem(SYSTEM);
+        for (int i = 0; i < VALUE_SET_SIZE; i++) {
+            include.addConcept().setCode("code-" + i);
+        }
+        registry.getResourceDao(ValueSet.class).update(valueSet);
+
+        for (int i = 0; i < PATIENTS; i++) {
+            Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+            Patient patient = new Patient();
+            patient.setId("benchmark-" + i);
+            transaction.addEntry().setResource(patient).getRequest().setMethod(Bundle.HTTPVerb.PUT)
+                    .setUrl("Patient/" + patient.getIdElement().getIdPart());
+
+            for (int j = 0; j < OBSERVATIONS_PER_PATIENT; j++) {
+                Observation observation = new Observation();
+                observation.setId("benchmark-" + i + "-" + j);
+                observation.setStatus(Observation.ObservationStatus.FINAL);
+                observation.setSubject(new Reference("Patient/" + patient.getIdElement().getIdPart()));
+                if (j % 2 == 0) {
+                    observation.getCode().addCoding().setSystem(SYSTEM)
+                            .setCode("code-" + ((i * OBSERVATIONS_PER_PATIENT + j) % VALUE_SET_SIZE));
+                } else {
+                    observation.getCode().addCoding().setSystem(OTHER_SYSTEM).setCode("code-" + j);
+                }
+                transaction.addEntry().setResource(observation).getRequest().setMethod(Bundle.HTTPVerb.PUT)
+                        .setUrl("Observation/" + observation.getIdElement().getIdPart());
+            }
+
+            registry.getSystemDao().transaction(null, transaction);
+        }
+    }
+
+    // Milliseconds per retrieve over all patients
+    private static double time(JpaFhirRetrieveProvider provider) {
+        long start = System.nanoTime();
+        run(provider);
+        return (System.nanoTime() - start) / 1e6 / PATIENTS;
+    }
+
+    private static int run(JpaFhirRetrieveProvider provider) {
+        int count = 0;
+        for (int i = 0; i < PATIENTS; i++) {
+            for (Object resource : provider.retrieve("Patient", "subject", "benchmark-" + i, "Observation", null,
+                    "code", null, VALUE_SET_URL, null, null, null, null)) {
+                if (resource != null) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+}